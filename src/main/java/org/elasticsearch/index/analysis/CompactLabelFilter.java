@@ -0,0 +1,76 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import java.io.IOException;
+
+/**
+ * Remaps Kana in tokens so that they take less bytes as labels of completion FST.
+ *
+ * Keystrokes are ASCII and take a byte per character already. Surface forms are mostly Kana and Kanji,
+ * 3 bytes each in UTF-8. Kana (U+3040 - U+30FF) are mapped to U+0100 - U+01BF, 2 bytes each.
+ * Characters originally in that range and the escape character itself are escaped with U+0001
+ * so that the mapping stays one-to-one. Index and search analyzers have to agree on it.
+ */
+public final class CompactLabelFilter extends TokenFilter {
+    static final char ESCAPE = '\u0001';
+    private static final char KANA_START = '\u3040';
+    private static final char KANA_END = '\u3100';
+    private static final char MAPPED_START = '\u0100';
+    private static final char MAPPED_END = (char) (MAPPED_START + (KANA_END - KANA_START));
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final StringBuilder encoded = new StringBuilder();
+
+    public CompactLabelFilter(TokenStream input) {
+        super(input);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (input.incrementToken() == false) {
+            return false;
+        }
+
+        char[] buffer = termAtt.buffer();
+        int length = termAtt.length();
+        for (int i = 0; i < length; i++) {
+            if (needsEncoding(buffer[i])) {
+                // Most tokens are ASCII keystrokes. Only rewrite the ones that change.
+                encoded.setLength(0);
+                encode(termAtt, encoded);
+                termAtt.setEmpty().append(encoded);
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a term the same way as this filter.
+     */
+    public static String encode(CharSequence term) {
+        StringBuilder encoded = new StringBuilder(term.length());
+        encode(term, encoded);
+        return encoded.toString();
+    }
+
+    private static void encode(CharSequence term, StringBuilder encoded) {
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (c >= KANA_START && c < KANA_END) {
+                encoded.append((char) (MAPPED_START + (c - KANA_START)));
+            } else if (c == ESCAPE || (c >= MAPPED_START && c < MAPPED_END)) {
+                encoded.append(ESCAPE).append(c);
+            } else {
+                encoded.append(c);
+            }
+        }
+    }
+
+    private static boolean needsEncoding(char c) {
+        return c >= KANA_START && c < KANA_END || c == ESCAPE || c >= MAPPED_START && c < MAPPED_END;
+    }
+}
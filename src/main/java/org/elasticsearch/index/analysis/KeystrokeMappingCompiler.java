@@ -0,0 +1,33 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.io.PathUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes expanded keystroke mapping to a binary resource that {@link KeystrokeUtil} loads instead of
+ * parsing and expanding KeyStrokeMapping.json. Run at build time.
+ */
+public final class KeystrokeMappingCompiler {
+    private KeystrokeMappingCompiler() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: KeystrokeMappingCompiler <output file>");
+        }
+
+        Map<String, List<Keystroke>> mapping = KeystrokeUtil.buildMapping();
+
+        Path output = PathUtils.get(args[0]);
+        Files.createDirectories(output.getParent());
+        try (OutputStream out = Files.newOutputStream(output)) {
+            KeystrokeUtil.writeMapping(mapping, out);
+        }
+    }
+}
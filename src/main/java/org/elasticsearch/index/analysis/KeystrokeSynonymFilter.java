@@ -0,0 +1,95 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.Outputs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Adds alternatives of {@link KeystrokeSynonymMap} to keystroke tokens.
+ *
+ * If a token starts with a key, the alternatives followed by the rest of the token are added at the same position.
+ * e.g. "dhizuni-rando" gets "disneyrando" with "disney, ディズニー". Tokens of an input are alternatives of each other,
+ * so the added ones just become more paths of the input.
+ */
+public final class KeystrokeSynonymFilter extends TokenFilter {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+
+    private final KeystrokeSynonymMap synonyms;
+    private final FST<IntsRef> fst;
+    private final Outputs<IntsRef> outputs;
+    private final FST.BytesReader fstReader;
+    private final FST.Arc<IntsRef> arc = new FST.Arc<>();
+
+    // Added tokens of the current input. The same alternative may follow several keystroke variations.
+    private final Set<String> added = new HashSet<>();
+    private final Deque<String> pending = new ArrayDeque<>();
+    private State state;
+
+    public KeystrokeSynonymFilter(TokenStream input, KeystrokeSynonymMap synonyms) {
+        super(input);
+        this.synonyms = synonyms;
+        this.fst = synonyms.fst();
+        this.outputs = fst.outputs;
+        this.fstReader = fst.getBytesReader();
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (pending.isEmpty() == false) {
+            restoreState(state);
+            termAtt.setEmpty().append(pending.poll());
+            posIncAtt.setPositionIncrement(0);
+            return true;
+        }
+
+        if (input.incrementToken() == false) {
+            return false;
+        }
+
+        lookup(termAtt.buffer(), termAtt.length());
+        if (pending.isEmpty() == false) {
+            state = captureState();
+        }
+        return true;
+    }
+
+    // Walk the FST along the token. Every final arc on the way is a key the token starts with.
+    private void lookup(char[] buffer, int length) throws IOException {
+        fst.getFirstArc(arc);
+        IntsRef output = outputs.getNoOutput();
+        for (int i = 0; i < length; i++) {
+            if (fst.findTargetArc(buffer[i], arc, arc, fstReader) == null) {
+                return;
+            }
+            output = outputs.add(output, arc.output);
+            if (arc.isFinal()) {
+                IntsRef ords = outputs.add(output, arc.nextFinalOutput);
+                for (int j = ords.offset; j < ords.offset + ords.length; j++) {
+                    String alternative = synonyms.alternative(ords.ints[j]) + new String(buffer, i + 1, length - i - 1);
+                    if (added.add(alternative)) {
+                        pending.add(alternative);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        added.clear();
+        pending.clear();
+        state = null;
+    }
+}
@@ -0,0 +1,165 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntSequenceOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Synonyms compiled into keystroke space.
+ *
+ * Rules are in Solr format, one per line. "a, b, c" makes the terms equivalent and "a, b => c" maps a and b to c.
+ * Each term is converted to keystrokes the same way kuromoji_suggest tokenizer does, so "disney, ディズニー" maps
+ * "disney" to "dhizuni-" and the other way around. Keys are stored in an FST. A token is looked up by walking
+ * the FST along its characters, which stops at the first character no key continues with. So, the number of
+ * rules doesn't matter to tokens that don't match any of them.
+ *
+ * Index analyzers expand all keystroke variations of documents already. Their keys are canonical keystrokes
+ * and alternatives are all the variations. Search analyzers get keystrokes of the input as typed. Their keys are
+ * all the variations and alternatives are canonical keystrokes.
+ */
+public final class KeystrokeSynonymMap {
+    private final FST<IntsRef> fst;
+    private final String[] alternatives;
+
+    private KeystrokeSynonymMap(FST<IntsRef> fst, String[] alternatives) {
+        this.fst = fst;
+        this.alternatives = alternatives;
+    }
+
+    FST<IntsRef> fst() {
+        return fst;
+    }
+
+    String alternative(int ord) {
+        return alternatives[ord];
+    }
+
+    /**
+     * @param rules synonym rules. Empty lines and lines starting with "#" are ignored.
+     * @param expand whether alternatives are all keystroke variations (index) or canonical ones (search).
+     * @param maxExpansions upper bound of keystroke variations per term.
+     * @return compiled synonyms or null if there's no rule.
+     */
+    public static KeystrokeSynonymMap build(List<String> rules, boolean expand, int maxExpansions) throws IOException {
+        Map<String, Set<String>> mapping = new TreeMap<>();
+        Keystrokes keys = new Keystrokes(expand == false, maxExpansions);
+        Keystrokes outputs = new Keystrokes(expand, maxExpansions);
+        for (String rule : rules) {
+            rule = rule.trim();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                continue;
+            }
+            String[] sides = rule.split("=>", -1);
+            if (sides.length > 2) {
+                throw new IllegalArgumentException("Invalid synonym rule [" + rule + "]");
+            }
+            List<String> sources = terms(rule, sides[0]);
+            List<String> targets = sides.length == 2 ? terms(rule, sides[1]) : sources;
+            Map<String, List<String>> targetOutputs = new HashMap<>();
+            for (String target : targets) {
+                targetOutputs.put(target, outputs.of(target));
+            }
+            for (String source : sources) {
+                for (String key : keys.of(source)) {
+                    Set<String> alternatives = mapping.computeIfAbsent(key, k -> new TreeSet<>());
+                    for (String target : targets) {
+                        if (target.equals(source) == false) {
+                            alternatives.addAll(targetOutputs.get(target));
+                        }
+                    }
+                    alternatives.remove(key);
+                }
+            }
+        }
+        mapping.values().removeIf(Set::isEmpty);
+        if (mapping.isEmpty()) {
+            return null;
+        }
+
+        Map<String, Integer> ords = new HashMap<>();
+        List<String> alternatives = new ArrayList<>();
+        IntSequenceOutputs fstOutputs = IntSequenceOutputs.getSingleton();
+        Builder<IntsRef> builder = new Builder<>(FST.INPUT_TYPE.BYTE2, fstOutputs);
+        IntsRefBuilder scratch = new IntsRefBuilder();
+        // Keys are sorted in UTF-16 order, the order the builder expects with BYTE2 labels.
+        for (Map.Entry<String, Set<String>> entry : mapping.entrySet()) {
+            IntsRefBuilder output = new IntsRefBuilder();
+            for (String alternative : entry.getValue()) {
+                output.append(ords.computeIfAbsent(alternative, a -> {
+                    alternatives.add(a);
+                    return alternatives.size() - 1;
+                }));
+            }
+            builder.add(Util.toUTF16(entry.getKey(), scratch), output.toIntsRef());
+        }
+        return new KeystrokeSynonymMap(builder.finish(), alternatives.toArray(new String[alternatives.size()]));
+    }
+
+    private static List<String> terms(String rule, String side) {
+        List<String> terms = new ArrayList<>();
+        for (String term : side.split(",")) {
+            term = term.trim();
+            if (term.isEmpty()) {
+                throw new IllegalArgumentException("Invalid synonym rule [" + rule + "]: empty term");
+            }
+            terms.add(term);
+        }
+        return terms;
+    }
+
+    /**
+     * Keystrokes of terms, the same ones kuromoji_suggest analyzers produce except surface forms.
+     */
+    private static final class Keystrokes {
+        private final KuromojiSuggestTokenizer tokenizer;
+        private final TokenStream stream;
+        private final CharTermAttribute termAtt;
+
+        Keystrokes(boolean expand, int maxExpansions) {
+            this.tokenizer = new KuromojiSuggestTokenizer(expand, maxExpansions, false);
+            this.stream = new LowerCaseFilter(tokenizer);
+            this.termAtt = stream.addAttribute(CharTermAttribute.class);
+        }
+
+        List<String> of(String term) throws IOException {
+            String normalized = Normalizer.normalize(term, Normalizer.Form.NFKC);
+            int readingStart = KuromojiSuggestTokenizer.readingStart(normalized);
+            String surfaceForm = readingStart >= 0 ? normalized.substring(0, readingStart) : normalized;
+
+            List<String> keystrokes = new ArrayList<>();
+            tokenizer.setReader(new StringReader(normalized));
+            try {
+                stream.reset();
+                while (stream.incrementToken()) {
+                    keystrokes.add(termAtt.toString());
+                }
+                stream.end();
+            } finally {
+                stream.close();
+            }
+            // Surface form comes last unless it's a keystroke too.
+            if (keystrokes.size() > 1 && keystrokes.get(keystrokes.size() - 1).equals(surfaceForm.toLowerCase(Locale.ROOT))) {
+                keystrokes.remove(keystrokes.size() - 1);
+            }
+            return keystrokes;
+        }
+    }
+}
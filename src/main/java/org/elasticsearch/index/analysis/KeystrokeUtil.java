@@ -5,10 +5,15 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
@@ -37,7 +42,26 @@ public class KeystrokeUtil {
     // Package private for test
     static final Map<String, List<Keystroke>> KEY_STROKE_MAP;
 
+    // Built by KeystrokeMappingCompiler at build time.
+    static final String COMPILED_MAPPING = "KeyStrokeMapping.bin";
+    private static final int COMPILED_MAPPING_VERSION = 1;
+
     static {
+        Map<String, List<Keystroke>> mapping;
+        try (InputStream in = KeystrokeUtil.class.getClassLoader().getResourceAsStream(COMPILED_MAPPING)) {
+            // Not available if it's not built with gradle (e.g. in IDE).
+            mapping = in != null ? readMapping(in) : buildMapping();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        KEY_STROKE_MAP = Collections.unmodifiableMap(mapping);
+    }
+
+    /**
+     * Parse KeyStrokeMapping.json and expand 2 and 3 char entries.
+     */
+    static Map<String, List<Keystroke>> buildMapping() {
         Map<String, List<Keystroke>> parsed = parseMapping();
 
         // Expand 2 char entries and then 3 char entries
@@ -49,8 +73,43 @@ public class KeystrokeUtil {
                             .map(expandEntry(parsed))
                             .collect(toMap(Map.Entry::getKey, Map.Entry::getValue)));
         }
+        return parsed;
+    }
+
+    static void writeMapping(Map<String, List<Keystroke>> mapping, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(COMPILED_MAPPING_VERSION);
+        data.writeInt(mapping.size());
+        for (Map.Entry<String, List<Keystroke>> entry : mapping.entrySet()) {
+            data.writeUTF(entry.getKey());
+            data.writeInt(entry.getValue().size());
+            for (Keystroke keystroke : entry.getValue()) {
+                data.writeUTF(keystroke.getKey());
+                data.writeInt(keystroke.getWeight());
+            }
+        }
+        data.flush();
+    }
 
-        KEY_STROKE_MAP = Collections.unmodifiableMap(parsed);
+    static Map<String, List<Keystroke>> readMapping(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        int version = data.readInt();
+        if (version != COMPILED_MAPPING_VERSION) {
+            throw new IllegalStateException("Unknown version of compiled mapping [" + version + "]");
+        }
+
+        int size = data.readInt();
+        Map<String, List<Keystroke>> mapping = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String key = data.readUTF();
+            int count = data.readInt();
+            Keystroke[] keystrokes = new Keystroke[count];
+            for (int j = 0; j < count; j++) {
+                keystrokes[j] = new Keystroke(data.readUTF(), data.readInt());
+            }
+            mapping.put(key, Collections.unmodifiableList(Arrays.asList(keystrokes)));
+        }
+        return mapping;
     }
 
     private static Map<String, List<Keystroke>> parseMapping() {
@@ -171,8 +230,38 @@ public class KeystrokeUtil {
                 .collect(toList()).stream();
     }
 
+    /**
+     * Returns true if the reading has more key stroke variations than maxExpansions,
+     * i.e. {@link #toKeyStrokes(String, int)} drops some of them.
+     *
+     * @param reading reading "basically" in Katakana.
+     * @param maxExpansions maximum number of expansions.
+     */
+    public static boolean exceedsExpansions(String reading, int maxExpansions) {
+        // Every combination of fragments is a variation.
+        long variations = 1;
+        for (List<Keystroke> fragments : fragments(reading)) {
+            variations *= fragments.size();
+            if (variations > maxExpansions) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static PriorityQueue<Keystroke> buildKeystrokes(String reading, int maxExpansions) {
         PriorityQueue<Keystroke> keyStrokes = new PriorityQueue<>();
+        for (List<Keystroke> keyStrokeFragments : fragments(reading)) {
+            keyStrokes = append(keyStrokes, keyStrokeFragments, maxExpansions);
+        }
+        return keyStrokes;
+    }
+
+    /**
+     * Split reading into fragments and look up key strokes of each of them.
+     */
+    private static List<List<Keystroke>> fragments(String reading) {
+        List<List<Keystroke>> fragments = new ArrayList<>();
 
         int pos = 0;
         int len = reading.length();
@@ -211,10 +300,10 @@ public class KeystrokeUtil {
                 keyStrokeFragments = Collections.singletonList(new Keystroke(reading.substring(from, pos), pos - from));
             }
 
-            keyStrokes = append(keyStrokes, keyStrokeFragments, maxExpansions);
+            fragments.add(keyStrokeFragments);
         }
 
-        return keyStrokes;
+        return fragments;
     }
 
     private static List<Keystroke> lookup(String reading, int pos, int len) {
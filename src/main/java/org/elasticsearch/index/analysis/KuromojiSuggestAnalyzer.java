@@ -4,18 +4,66 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.util.RamUsageEstimator;
 
 import java.io.Reader;
 import java.text.Normalizer;
 
+/**
+ * Analyzers of type "kuromoji_suggest_index" and "kuromoji_suggest_search".
+ * The surface form is always one of the tokens of an input even with "max_tokens". The suggester relies on it
+ * to look up documents by surface form. Custom analyzers with kuromoji_suggest tokenizer keep it too, but their filters may not.
+ */
 public abstract class KuromojiSuggestAnalyzer extends Analyzer {
+    protected final int maxExpansions;
+    protected final int expansionsPerChar;
+    protected final int maxTokens;
+    protected final int nBestCost;
+    protected final boolean compactLabels;
+    protected final KeystrokeSynonymMap synonyms;
+
+    protected KuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost) {
+        this(maxExpansions, expansionsPerChar, maxTokens, nBestCost, false);
+    }
+
+    protected KuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost,
+                                      boolean compactLabels) {
+        this(maxExpansions, expansionsPerChar, maxTokens, nBestCost, compactLabels, null);
+    }
+
+    /**
+     * @param synonyms if not null, alternatives are added to keystrokes. See {@link KeystrokeSynonymFilter}.
+     */
+    protected KuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost,
+                                      boolean compactLabels, KeystrokeSynonymMap synonyms) {
+        this.maxExpansions = maxExpansions;
+        this.expansionsPerChar = expansionsPerChar;
+        this.maxTokens = maxTokens;
+        this.nBestCost = nBestCost;
+        this.compactLabels = compactLabels;
+        this.synonyms = synonyms;
+    }
+
     @Override
     protected TokenStreamComponents createComponents(String fieldName) {
         Tokenizer tokenizer = createTokenizer();
         TokenStream tokenStream = new LowerCaseFilter(tokenizer);
+        if (this.synonyms != null) {
+            tokenStream = new KeystrokeSynonymFilter(tokenStream, this.synonyms);
+        }
+        if (this.compactLabels) {
+            tokenStream = new CompactLabelFilter(tokenStream);
+        }
         return new TokenStreamComponents(tokenizer, tokenStream);
     }
 
+    /**
+     * Whether Kana in tokens are remapped by {@link CompactLabelFilter}.
+     */
+    public boolean isCompactLabels() {
+        return compactLabels;
+    }
+
     @Override
     protected Reader initReader(String fieldName, Reader reader) {
         return new UnicodeNormalizationCharFilter(reader, Normalizer.Form.NFKC, false);
@@ -23,17 +71,68 @@ public abstract class KuromojiSuggestAnalyzer extends Analyzer {
 
     protected abstract Tokenizer createTokenizer();
 
+    /**
+     * Rough upper bound of memory keystrokes of an input of the length take while it's analyzed.
+     */
+    public long estimateExpansionBytes(int inputLength) {
+        long expansions = this.maxExpansions;
+        if (this.expansionsPerChar > 0) {
+            expansions = Math.min((long) this.expansionsPerChar * Math.max(inputLength, 1), expansions);
+        }
+        // A keystroke takes up to 4 characters ("xtsu") per Kana and the weight.
+        long keystrokeBytes =
+                RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 4L * Character.BYTES * inputLength)
+                + RamUsageEstimator.shallowSizeOfInstance(String.class) + RamUsageEstimator.shallowSizeOfInstance(Keystroke.class);
+        return expansions * keystrokeBytes;
+    }
+
     public static class IndexKuromojiSuggestAnalyzer extends KuromojiSuggestAnalyzer {
+        public IndexKuromojiSuggestAnalyzer() {
+            this(KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS, 0, 0, 0);
+        }
+
+        public IndexKuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost) {
+            super(maxExpansions, expansionsPerChar, maxTokens, nBestCost);
+        }
+
+        public IndexKuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost,
+                                            boolean compactLabels) {
+            super(maxExpansions, expansionsPerChar, maxTokens, nBestCost, compactLabels);
+        }
+
+        public IndexKuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost,
+                                            boolean compactLabels, KeystrokeSynonymMap synonyms) {
+            super(maxExpansions, expansionsPerChar, maxTokens, nBestCost, compactLabels, synonyms);
+        }
+
         @Override
         protected Tokenizer createTokenizer() {
-            return new KuromojiSuggestTokenizer(true, 512, false);
+            return new KuromojiSuggestTokenizer(true, maxExpansions, expansionsPerChar, maxTokens, nBestCost, false);
         }
     }
 
     public static class SearchKuromojiSuggestAnalyzer extends KuromojiSuggestAnalyzer {
+        public SearchKuromojiSuggestAnalyzer() {
+            this(KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS, 0, 0, 0);
+        }
+
+        public SearchKuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost) {
+            super(maxExpansions, expansionsPerChar, maxTokens, nBestCost);
+        }
+
+        public SearchKuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost,
+                                             boolean compactLabels) {
+            super(maxExpansions, expansionsPerChar, maxTokens, nBestCost, compactLabels);
+        }
+
+        public SearchKuromojiSuggestAnalyzer(int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost,
+                                             boolean compactLabels, KeystrokeSynonymMap synonyms) {
+            super(maxExpansions, expansionsPerChar, maxTokens, nBestCost, compactLabels, synonyms);
+        }
+
         @Override
         protected Tokenizer createTokenizer() {
-            return new KuromojiSuggestTokenizer(false, 512, false);
+            return new KuromojiSuggestTokenizer(false, maxExpansions, expansionsPerChar, maxTokens, nBestCost, false);
         }
     }
 }
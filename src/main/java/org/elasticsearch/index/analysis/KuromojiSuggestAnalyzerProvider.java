@@ -4,6 +4,10 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
 public class KuromojiSuggestAnalyzerProvider extends AbstractIndexAnalyzerProvider<KuromojiSuggestAnalyzer> {
     public static final String INDEX_ANALYZER = "kuromoji_suggest_index";
     public static final String SEARCH_ANALYZER = "kuromoji_suggest_search";
@@ -13,15 +17,40 @@ public class KuromojiSuggestAnalyzerProvider extends AbstractIndexAnalyzerProvid
     public KuromojiSuggestAnalyzerProvider(IndexSettings indexSettings, Environment env, String name, Settings settings) {
         super(indexSettings, name, settings);
 
-        switch (name) {
+        int maxExpansions = settings.getAsInt("max_expansions", KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS);
+        int expansionsPerChar = settings.getAsInt("expansions_per_char", 0);
+        int maxTokens = settings.getAsInt("max_tokens", 0);
+        int nBestCost = KuromojiSuggestTokenizerFactory.nBestCost(settings);
+        boolean compactLabels = settings.getAsBoolean("compact_labels", false);
+        List<String> synonymRules = Analysis.getWordList(env, settings, "synonyms");
+
+        // Custom analyzers refer to the built-in ones by "type".
+        String type = settings.get("type", name);
+        switch (type) {
             case INDEX_ANALYZER:
-                this.analyzer = new KuromojiSuggestAnalyzer.IndexKuromojiSuggestAnalyzer();
+                this.analyzer = new KuromojiSuggestAnalyzer.IndexKuromojiSuggestAnalyzer(
+                        maxExpansions, expansionsPerChar, maxTokens, nBestCost, compactLabels,
+                        synonyms(synonymRules, true, maxExpansions));
                 break;
             case SEARCH_ANALYZER:
-                this.analyzer = new KuromojiSuggestAnalyzer.SearchKuromojiSuggestAnalyzer();
+                this.analyzer = new KuromojiSuggestAnalyzer.SearchKuromojiSuggestAnalyzer(
+                        maxExpansions, expansionsPerChar, maxTokens, nBestCost, compactLabels,
+                        synonyms(synonymRules, false, maxExpansions));
                 break;
             default:
-                throw new IllegalArgumentException("Invalid name [" + name + "]");
+                throw new IllegalArgumentException("Invalid type [" + type + "]");
+        }
+    }
+
+    // Compiled once per index, when the analyzer is created.
+    private static KeystrokeSynonymMap synonyms(List<String> rules, boolean expand, int maxExpansions) {
+        if (rules == null) {
+            return null;
+        }
+        try {
+            return KeystrokeSynonymMap.build(rules, expand, maxExpansions);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to build synonyms", e);
         }
     }
 
@@ -1,5 +1,7 @@
 package org.elasticsearch.index.analysis;
 
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.ja.JapaneseTokenizer;
 import org.apache.lucene.analysis.ja.tokenattributes.ReadingAttribute;
@@ -7,17 +9,43 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+
+import static java.util.stream.Collectors.toList;
 
 /**
  * A tokenizer that generates key strokes from input by utilizing {@link JapaneseTokenizer}.
+ * If input has explicit reading (see {@link #readingStart(CharSequence)}), {@link JapaneseTokenizer} is skipped.
  */
 public class KuromojiSuggestTokenizer extends Tokenizer {
+    public static final int DEFAULT_MAX_EXPANSIONS = 512;
+
+    private static final char READING_OPEN = '《';
+    private static final char READING_CLOSE = '》';
+
+    // Upper bound of paths to take readings from when n-best is enabled.
+    private static final int MAX_NBEST_PATHS = 16;
+
+    // Bounds of memoized inputs per tokenizer. See reset().
+    private static final int MAX_MEMOIZED_INPUTS = 32;
+    private static final int MAX_MEMOIZED_TOKENS = 1024;
+
+    private static final Logger LOGGER = Loggers.getLogger(KuromojiSuggestTokenizer.class);
 
     private static final Comparator<String> LENGTH_COMPARATOR = new Comparator<String>() {
         @Override
@@ -39,20 +67,62 @@ public class KuromojiSuggestTokenizer extends Tokenizer {
     private final WeightAttribute weightAtt = addAttribute(WeightAttribute.class);
 
     private final JapaneseTokenizer kuromoji;
+    // Kuromoji is set up only for inputs that need it. Memoized inputs and ones with explicit reading skip it.
+    private boolean kuromojiReset;
 
     private final boolean expand;
     private final int maxExpansions;
+    private final int expansionsPerChar;
+    private final int maxTokens;
+    private final int nBestCost;
     private final boolean edgeNGram;
 
+    private final char[] buffer = new char[1024];
+
     private Iterator<Keystroke> keystrokes;
     private boolean first = true; // First token or not.
 
+    // Tokens of recent inputs, least recently used first. Keystrokes are immutable, so they are replayed as is.
+    private final Map<String, List<Keystroke>> memoized = new LinkedHashMap<>(16, 0.75f, true);
+    private int memoizedTokens;
+
     public KuromojiSuggestTokenizer(boolean expand, int maxExpansions, boolean edgeNGram) {
+        this(expand, maxExpansions, 0, 0, 0, edgeNGram);
+    }
+
+    /**
+     * @param expand whether to generate all the keystroke variations or only the canonical one.
+     * @param maxExpansions upper bound of keystroke variations per input.
+     * @param expansionsPerChar if > 0, the expansion budget is this many variations per reading character,
+     *                          still capped by maxExpansions. 0 disables the adaptive budget.
+     * @param maxTokens if > 0, hard limit of tokens emitted per input. Lower ranked tokens are dropped first.
+     * @param nBestCost if > 0, readings of the n-best paths within this cost from the best one are used too.
+     *                  They share the expansion budget.
+     * @param edgeNGram whether to emit edge n-grams of the keystrokes.
+     */
+    public KuromojiSuggestTokenizer(
+            boolean expand, int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost, boolean edgeNGram) {
+        if (maxExpansions <= 0) {
+            throw new IllegalArgumentException("max_expansions must be > 0");
+        }
+        if (expansionsPerChar < 0) {
+            throw new IllegalArgumentException("expansions_per_char must be >= 0");
+        }
+        if (maxTokens < 0) {
+            throw new IllegalArgumentException("max_tokens must be >= 0");
+        }
+        if (nBestCost < 0) {
+            throw new IllegalArgumentException("nbest_cost must be >= 0");
+        }
         this.expand = expand;
         this.maxExpansions = maxExpansions;
+        this.expansionsPerChar = expansionsPerChar;
+        this.maxTokens = maxTokens;
+        this.nBestCost = nBestCost;
         this.edgeNGram = edgeNGram;
 
         this.kuromoji = new JapaneseTokenizer(null, false, JapaneseTokenizer.Mode.NORMAL);
+        this.kuromoji.setNBestCost(nBestCost);
     }
 
     @Override
@@ -85,53 +155,378 @@ public class KuromojiSuggestTokenizer extends Tokenizer {
     @Override
     public void close() throws IOException {
         super.close();
-        this.kuromoji.close();
+        if (this.kuromojiReset) {
+            this.kuromojiReset = false;
+            this.kuromoji.close();
+        }
     }
 
     @Override
     public void reset() throws IOException {
         super.reset();
-        this.kuromoji.setReader(this.input);
-        this.kuromoji.reset();
+        String text = readAll();
 
-        StringBuilder readingBuilder = new StringBuilder();
-        StringBuilder surfaceFormBuilder = new StringBuilder();
-        while (this.kuromoji.incrementToken()) {
-            String readingFragment = this.kuromoji.getAttribute(ReadingAttribute.class).getReading();
-            String surfaceFormFragment = this.kuromoji.getAttribute(CharTermAttribute.class).toString();
+        // Traced per input. Timing is skipped unless tracing is enabled.
+        boolean trace = LOGGER.isTraceEnabled();
 
-            if (readingFragment == null) {
-                // Use surface form if kuromoji can't produce reading.
-                readingFragment = surfaceFormFragment;
+        // A thread reuses the tokenizer for the documents it indexes. Bulk requests often repeat inputs
+        // (the same station or brand for many documents). Their copies skip kuromoji and expansion.
+        List<Keystroke> memoizedKeystrokes = this.memoized.get(text);
+        if (memoizedKeystrokes != null) {
+            if (trace) {
+                LOGGER.trace("analyzed [{}]: memoized, tokens [{}]", text, memoizedKeystrokes.size());
             }
-            readingBuilder.append(readingFragment);
-            surfaceFormBuilder.append(surfaceFormFragment);
+            this.keystrokes = memoizedKeystrokes.iterator();
+            this.first = true;
+            return;
         }
 
-        // It may contain Hiragana. Convert it to Katakana.
-        hiraganaToKatakana(readingBuilder);
+        long start = trace ? System.nanoTime() : 0;
+        List<String> readings = new ArrayList<>(1);
+        String surfaceForm;
+        int readingStart = readingStart(text);
+        if (readingStart >= 0) {
+            // Reading is given. No need to analyze.
+            StringBuilder readingBuilder = new StringBuilder(text.substring(readingStart + 1, text.length() - 1));
+            hiraganaToKatakana(readingBuilder);
+            readings.add(readingBuilder.toString());
+            surfaceForm = text.substring(0, readingStart);
+        } else if (this.nBestCost > 0) {
+            resetKuromoji(text);
+            surfaceForm = readNBest(readings);
+            if (readings.isEmpty()) {
+                // No path reached the end. Don't index the input without keystrokes, use the best path.
+                this.kuromoji.end();
+                this.kuromoji.close();
+                this.kuromoji.setNBestCost(0);
+                try {
+                    resetKuromoji(text);
+                    StringBuilder surfaceFormBuilder = new StringBuilder();
+                    readings.add(readReading(this.kuromoji, surfaceFormBuilder));
+                    surfaceForm = surfaceFormBuilder.toString();
+                } finally {
+                    this.kuromoji.setNBestCost(this.nBestCost);
+                }
+            }
+        } else {
+            resetKuromoji(text);
+            StringBuilder surfaceFormBuilder = new StringBuilder();
+            readings.add(readReading(this.kuromoji, surfaceFormBuilder));
+            surfaceForm = surfaceFormBuilder.toString();
+        }
+        long kuromojiNanos = trace ? System.nanoTime() - start : 0;
 
         List<Keystroke> keyStrokes;
-        if (this.expand) {
-            keyStrokes = KeystrokeUtil.toKeyStrokes(readingBuilder.toString(), this.maxExpansions);
+        if (readings.size() == 1) {
+            keyStrokes = toKeystrokes(readings.get(0), 1, surfaceForm);
         } else {
-            keyStrokes = new ArrayList<>();
-            keyStrokes.add(KeystrokeUtil.toCanonicalKeystroke(readingBuilder.toString()));
+            // Alternative readings share the expansion budget.
+            // There can be duplicates among readings. Keep the ones with higher rank.
+            Map<String, Keystroke> merged = new HashMap<>();
+            for (String reading : readings) {
+                for (Keystroke keystroke : toKeystrokes(reading, readings.size(), surfaceForm)) {
+                    merged.merge(keystroke.getKey(), keystroke, BinaryOperator.minBy(Comparator.<Keystroke>reverseOrder()));
+                }
+            }
+            keyStrokes = merged.values().stream().sorted(Comparator.reverseOrder()).collect(toList());
         }
 
         // Add original input as "keystroke"
         // Kuromoji doesn't always produce correct reading. So, we use original input for matching too.
-        String surfaceForm = surfaceFormBuilder.toString();
         Keystroke surfaceFormAsKeystroke = new Keystroke(surfaceForm, surfaceForm.length());
         if (!keyStrokes.contains(surfaceFormAsKeystroke)) {
             keyStrokes.add(surfaceFormAsKeystroke);
         }
 
-        this.keystrokes = this.edgeNGram ? KeystrokeUtil.toEdgeNGrams(keyStrokes).iterator() : keyStrokes.iterator();
+        if (this.edgeNGram) {
+            keyStrokes = KeystrokeUtil.toEdgeNGrams(keyStrokes);
+        }
+
+        List<Keystroke> limited = limitTokens(keyStrokes, surfaceFormAsKeystroke);
+        if (trace) {
+            LOGGER.trace("analyzed [{}]: kuromoji took [{}], reading length [{}], expansions [{}], truncated [{}]",
+                    surfaceForm, TimeValue.timeValueNanos(kuromojiNanos), readings.isEmpty() ? 0 : readings.get(0).length(),
+                    keyStrokes.size(), limited.size() < keyStrokes.size());
+        }
+        memoize(text, limited);
+        this.keystrokes = limited.iterator();
         this.first = true;
     }
 
-    private void hiraganaToKatakana(StringBuilder sb) {
+    private void resetKuromoji(String text) throws IOException {
+        this.kuromoji.setReader(new StringReader(text));
+        this.kuromojiReset = true;
+        this.kuromoji.reset();
+    }
+
+    // Visible for testing
+    int memoizedInputs() {
+        return this.memoized.size();
+    }
+
+    // Visible for testing
+    boolean isKuromojiReset() {
+        return this.kuromojiReset;
+    }
+
+    private void memoize(String text, List<Keystroke> tokens) {
+        if (tokens.size() > MAX_MEMOIZED_TOKENS) {
+            return;
+        }
+        this.memoized.put(text, tokens);
+        this.memoizedTokens += tokens.size();
+        Iterator<List<Keystroke>> eldest = this.memoized.values().iterator();
+        while (this.memoized.size() > MAX_MEMOIZED_INPUTS || this.memoizedTokens > MAX_MEMOIZED_TOKENS) {
+            this.memoizedTokens -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Concatenate readings of the tokens produced by {@link JapaneseTokenizer}.
+     * Surface form is used for tokens whose reading is unknown.
+     *
+     * @param kuromoji token stream of {@link JapaneseTokenizer}. It has to be reset already.
+     * @param surfaceForm builder to append surface form to.
+     * @return reading in Katakana.
+     */
+    public static String readReading(TokenStream kuromoji, StringBuilder surfaceForm) throws IOException {
+        ReadingAttribute readingAtt = kuromoji.getAttribute(ReadingAttribute.class);
+        CharTermAttribute termAtt = kuromoji.getAttribute(CharTermAttribute.class);
+
+        StringBuilder readingBuilder = new StringBuilder();
+        while (kuromoji.incrementToken()) {
+            String readingFragment = readingAtt.getReading();
+            String surfaceFormFragment = termAtt.toString();
+
+            if (readingFragment == null) {
+                // Use surface form if kuromoji can't produce reading.
+                readingFragment = surfaceFormFragment;
+            }
+            readingBuilder.append(readingFragment);
+            surfaceForm.append(surfaceFormFragment);
+        }
+
+        // It may contain Hiragana. Convert it to Katakana.
+        hiraganaToKatakana(readingBuilder);
+        return readingBuilder.toString();
+    }
+
+    /**
+     * Returns start index of explicit reading, which is written in Kana at the end of input in "surface《reading》" form.
+     * e.g. "東京駅《とうきょうえき》"
+     *
+     * @param input input.
+     * @return index of "《" or -1 if the input doesn't have explicit reading.
+     */
+    public static int readingStart(CharSequence input) {
+        int last = input.length() - 1;
+        if (last < 2 || input.charAt(last) != READING_CLOSE) {
+            return -1;
+        }
+
+        for (int i = last - 1; i > 0; i--) {
+            char c = input.charAt(i);
+            if (c == READING_OPEN) {
+                return i == last - 1 ? -1 : i;
+            }
+            if (!isKana(c)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns index of the last Kanji in input. Readings of Kanji are ambiguous, so suggesters and queries
+     * require the input up to it to match surface forms as is.
+     *
+     * @param input input.
+     * @return index of the last Kanji or -1 if the input doesn't have Kanji.
+     */
+    public static int lastIndexOfKanji(CharSequence input) {
+        for (int i = input.length() - 1; i >= 0; i--) {
+            if (Character.UnicodeBlock.of(input.charAt(i)).equals(Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean isKana(char c) {
+        return ('ぁ' <= c && c <= 'ゖ') || ('ァ' <= c && c <= 'ヺ') || c == 'ー';
+    }
+
+    private String readAll() throws IOException {
+        StringBuilder text = new StringBuilder();
+        int length;
+        while ((length = this.input.read(this.buffer)) != -1) {
+            text.append(this.buffer, 0, length);
+        }
+        return text.toString();
+    }
+
+    private List<Keystroke> toKeystrokes(String reading, int shares, String surfaceForm) {
+        if (!this.expand) {
+            List<Keystroke> keyStrokes = new ArrayList<>();
+            keyStrokes.add(KeystrokeUtil.toCanonicalKeystroke(reading));
+            return keyStrokes;
+        }
+
+        int budget = Math.max(expansionBudget(reading.length()) / shares, 1);
+        List<Keystroke> keyStrokes = KeystrokeUtil.toKeyStrokes(reading, budget);
+        if (keyStrokes.size() >= budget && LOGGER.isDebugEnabled() && KeystrokeUtil.exceedsExpansions(reading, budget)) {
+            LOGGER.debug("expansions of [{}] were cut off at the budget [{}]", surfaceForm, budget);
+        }
+        return keyStrokes;
+    }
+
+    /**
+     * Read n-best tokens from kuromoji and collect distinct readings of the paths.
+     * N-best tokens form a graph. Walk it from the first position to the last one.
+     *
+     * @param readings list to add readings to.
+     * @return surface form.
+     */
+    private String readNBest(List<String> readings) throws IOException {
+        Map<Integer, List<Arc>> arcs = new HashMap<>();
+        PositionIncrementAttribute posInc = this.kuromoji.getAttribute(PositionIncrementAttribute.class);
+        PositionLengthAttribute posLength = this.kuromoji.getAttribute(PositionLengthAttribute.class);
+
+        int position = -1;
+        int lastPosition = 0;
+        while (this.kuromoji.incrementToken()) {
+            String reading = this.kuromoji.getAttribute(ReadingAttribute.class).getReading();
+            String surfaceForm = this.kuromoji.getAttribute(CharTermAttribute.class).toString();
+            if (reading == null) {
+                // Use surface form if kuromoji can't produce reading.
+                reading = surfaceForm;
+            }
+
+            position += posInc.getPositionIncrement();
+            int end = position + posLength.getPositionLength();
+            arcs.computeIfAbsent(position, p -> new ArrayList<>()).add(new Arc(end, reading, surfaceForm));
+            lastPosition = Math.max(lastPosition, end);
+        }
+
+        Paths paths = new Paths(arcs, lastPosition);
+        paths.walk(0, new StringBuilder(), new StringBuilder());
+        readings.addAll(paths.readings);
+        return paths.surfaceForm;
+    }
+
+    private int expansionBudget(int readingLength) {
+        if (this.expansionsPerChar == 0) {
+            return this.maxExpansions;
+        }
+        long budget = (long) this.expansionsPerChar * Math.max(readingLength, 1);
+        return (int) Math.min(budget, this.maxExpansions);
+    }
+
+    // Keystrokes are ranked by weight already. Keep the top ones, but not at the expense of the surface form
+    // since it's the only token that can match Kanji input.
+    private List<Keystroke> limitTokens(List<Keystroke> tokens, Keystroke surfaceForm) {
+        if (this.maxTokens == 0 || tokens.size() <= this.maxTokens) {
+            return tokens;
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("tokens of [{}] truncated from [{}] to [{}]", surfaceForm.getKey(), tokens.size(), this.maxTokens);
+        }
+
+        List<Keystroke> limited = new ArrayList<>(tokens.subList(0, this.maxTokens));
+        // The suggester looks up documents by surface form. Keep it even if it's weighted lower, edge n-grams too.
+        if (limited.stream().noneMatch(token -> token.getKey().equals(surfaceForm.getKey()))) {
+            limited.set(limited.size() - 1, surfaceForm);
+        }
+        return limited;
+    }
+
+    // Visible for testing
+    static final class Arc {
+        private final int end;
+        private final String reading;
+        private final String surfaceForm;
+
+        Arc(int end, String reading, String surfaceForm) {
+            this.end = end;
+            this.reading = reading;
+            this.surfaceForm = surfaceForm;
+        }
+    }
+
+    /**
+     * Enumerates paths of n-best token graph up to {@link #MAX_NBEST_PATHS}.
+     * Arcs that can't reach the end are skipped, so every path walked yields a reading.
+     */
+    // Visible for testing
+    static final class Paths {
+        private final Map<Integer, List<Arc>> arcs;
+        private final int lastPosition;
+        private final Set<Integer> reachEnd = new HashSet<>();
+        private final Set<String> readings = new LinkedHashSet<>();
+        private String surfaceForm;
+        private int remaining = MAX_NBEST_PATHS;
+
+        Paths(Map<Integer, List<Arc>> arcs, int lastPosition) {
+            this.arcs = arcs;
+            this.lastPosition = lastPosition;
+            // Arcs go forward. Positions are resolved from the last one backwards.
+            this.reachEnd.add(lastPosition);
+            List<Integer> positions = new ArrayList<>(arcs.keySet());
+            positions.sort(Comparator.reverseOrder());
+            for (int position : positions) {
+                for (Arc arc : arcs.get(position)) {
+                    if (this.reachEnd.contains(arc.end)) {
+                        this.reachEnd.add(position);
+                        break;
+                    }
+                }
+            }
+        }
+
+        Set<String> readings() {
+            return this.readings;
+        }
+
+        void walk(int position, StringBuilder reading, StringBuilder surfaceForm) {
+            if (position == this.lastPosition) {
+                hiraganaToKatakana(reading);
+                this.readings.add(reading.toString());
+                if (this.surfaceForm == null) {
+                    // Surface form is the same for all the paths.
+                    this.surfaceForm = surfaceForm.toString();
+                }
+                this.remaining--;
+                return;
+            }
+
+            if (this.reachEnd.contains(position) == false) {
+                return;
+            }
+
+            for (Arc arc : this.arcs.get(position)) {
+                if (this.remaining <= 0) {
+                    return;
+                }
+                if (this.reachEnd.contains(arc.end) == false) {
+                    continue;
+                }
+                int readingLength = reading.length();
+                int surfaceFormLength = surfaceForm.length();
+                reading.append(arc.reading);
+                surfaceForm.append(arc.surfaceForm);
+
+                walk(arc.end, reading, surfaceForm);
+
+                reading.setLength(readingLength);
+                surfaceForm.setLength(surfaceFormLength);
+            }
+        }
+    }
+
+    private static void hiraganaToKatakana(StringBuilder sb) {
         for (int i = 0; i < sb.length(); i++) {
             char c = sb.charAt(i);
             if (c >= 'ぁ' && c <= 'ん') {
@@ -144,6 +539,8 @@ public class KuromojiSuggestTokenizer extends Tokenizer {
     @Override
     public void end() throws IOException {
         super.end();
-        this.kuromoji.end();
+        if (this.kuromojiReset) {
+            this.kuromoji.end();
+        }
     }
 }
@@ -1,6 +1,7 @@
 package org.elasticsearch.index.analysis;
 
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
@@ -8,18 +9,38 @@ import org.elasticsearch.index.IndexSettings;
 public class KuromojiSuggestTokenizerFactory extends AbstractTokenizerFactory {
     private final boolean expand;
     private final int maxExpansions;
+    private final int expansionsPerChar;
+    private final int maxTokens;
+    private final int nBestCost;
     private final boolean edgeNGram;
 
     public KuromojiSuggestTokenizerFactory(IndexSettings indexSettings, Environment env, String name, Settings settings) {
         super(indexSettings, name, settings);
 
         this.expand = settings.getAsBoolean("expand", false);
-        this.maxExpansions = settings.getAsInt("max_expansions", 512);
+        this.maxExpansions = settings.getAsInt("max_expansions", KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS);
+        this.expansionsPerChar = settings.getAsInt("expansions_per_char", 0);
+        this.maxTokens = settings.getAsInt("max_tokens", 0);
+        this.nBestCost = nBestCost(settings);
         this.edgeNGram = settings.getAsBoolean("edge_ngram", false);
     }
 
+    /**
+     * Resolve n-best cost from "nbest_cost" and "nbest_examples" the same way kuromoji_tokenizer does.
+     */
+    static int nBestCost(Settings settings) {
+        int nBestCost = settings.getAsInt("nbest_cost", 0);
+        String examples = settings.get("nbest_examples");
+        if (examples != null) {
+            JapaneseTokenizer tokenizer = new JapaneseTokenizer(null, false, JapaneseTokenizer.Mode.NORMAL);
+            nBestCost = Math.max(nBestCost, tokenizer.calcNBestCost(examples));
+        }
+        return nBestCost;
+    }
+
     @Override
     public Tokenizer create() {
-        return new KuromojiSuggestTokenizer(this.expand, this.maxExpansions, this.edgeNGram);
+        return new KuromojiSuggestTokenizer(
+                this.expand, this.maxExpansions, this.expansionsPerChar, this.maxTokens, this.nBestCost, this.edgeNGram);
     }
 }
@@ -0,0 +1,56 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Loads keystroke mapping and kuromoji dictionaries at node start
+ * so that the first indexing or suggest request doesn't have to.
+ */
+public class KuromojiSuggestWarmer extends AbstractLifecycleComponent {
+    public static final Setting<Boolean> WARMUP_SETTING =
+            Setting.boolSetting("japanese_suggester.warmup", true, Setting.Property.NodeScope);
+
+    private final ThreadPool threadPool;
+
+    public KuromojiSuggestWarmer(Settings settings, ThreadPool threadPool) {
+        super(settings);
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    protected void doStart() {
+        if (WARMUP_SETTING.get(settings)) {
+            this.threadPool.generic().execute(this::warmup);
+        }
+    }
+
+    private void warmup() {
+        long start = System.nanoTime();
+        try (KuromojiSuggestTokenizer tokenizer = new KuromojiSuggestTokenizer(true, 1, false)) {
+            tokenizer.setReader(new StringReader("東京"));
+            tokenizer.reset();
+            while (tokenizer.incrementToken()) {
+                // Just consume
+            }
+            tokenizer.end();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to warm up kuromoji_suggest", e);
+            return;
+        }
+        logger.debug("warmed up kuromoji_suggest in [{}]ms", (System.nanoTime() - start) / 1000000);
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+    }
+}
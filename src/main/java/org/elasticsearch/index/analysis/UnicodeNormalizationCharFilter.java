@@ -1,6 +1,9 @@
 package org.elasticsearch.index.analysis;
 
+import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.CharFilter;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
 
 import java.io.IOException;
 import java.io.Reader;
@@ -8,6 +11,8 @@ import java.text.Normalizer;
 import java.util.Locale;
 
 public class UnicodeNormalizationCharFilter extends CharFilter {
+    private static final Logger LOGGER = Loggers.getLogger(UnicodeNormalizationCharFilter.class);
+
     private final Normalizer.Form form;
     private final boolean lowerCase;
 
@@ -56,6 +61,8 @@ public class UnicodeNormalizationCharFilter extends CharFilter {
     }
 
     private void readAllAndNormalize() throws IOException {
+        boolean trace = LOGGER.isTraceEnabled();
+        long start = trace ? System.nanoTime() : 0;
         int length;
         StringBuilder raw = new StringBuilder();
         while ((length = this.input.read(this.buffer)) != -1) {
@@ -65,5 +72,9 @@ public class UnicodeNormalizationCharFilter extends CharFilter {
         String normalized = Normalizer.normalize(raw, this.form);
 
         this.normalized.append(this.lowerCase ? normalized.toLowerCase(Locale.getDefault()) : normalized);
+        if (trace) {
+            LOGGER.trace("normalized [{}] chars to [{}] chars with [{}], took [{}]",
+                    raw.length(), this.normalized.length(), this.form, TimeValue.timeValueNanos(System.nanoTime() - start));
+        }
     }
 }
@@ -0,0 +1,269 @@
+package org.elasticsearch.index.query;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.AutomatonQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.analysis.KuromojiSuggestTokenizer;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.support.QueryParsers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Prefix query on a field indexed with full keystrokes (kuromoji_suggest tokenizer with "expand", without "edge_ngram").
+ *
+ * Input is analyzed into keystrokes like japanese_completion does ("kuromoji_suggest_search" analyzer by default).
+ * Terms starting with any of them match. If input contains Kanji, the input up to the last Kanji has to match
+ * the surface form too. Prefixes are combined into an automaton so that the term dictionary is
+ * visited once, instead of indexing edge n-grams of every expansion.
+ */
+public class JapanesePrefixQueryBuilder extends AbstractQueryBuilder<JapanesePrefixQueryBuilder> {
+    public static final String NAME = "japanese_prefix";
+    public static final String DEFAULT_ANALYZER = "kuromoji_suggest_search";
+
+    private static final ParseField VALUE_FIELD = new ParseField("value");
+    private static final ParseField ANALYZER_FIELD = new ParseField("analyzer");
+    private static final ParseField REWRITE_FIELD = new ParseField("rewrite");
+
+    private final String fieldName;
+    private final String value;
+    private String analyzer;
+    private String rewrite;
+
+    public JapanesePrefixQueryBuilder(String fieldName, String value) {
+        if (Strings.isEmpty(fieldName)) {
+            throw new IllegalArgumentException("field name is null or empty");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+        this.fieldName = fieldName;
+        this.value = value;
+    }
+
+    public JapanesePrefixQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        this.fieldName = in.readString();
+        this.value = in.readString();
+        this.analyzer = in.readOptionalString();
+        this.rewrite = in.readOptionalString();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeString(value);
+        out.writeOptionalString(analyzer);
+        out.writeOptionalString(rewrite);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    /**
+     * Analyzer to generate keystrokes of the input with. Defaults to {@link #DEFAULT_ANALYZER}.
+     */
+    public JapanesePrefixQueryBuilder analyzer(String analyzer) {
+        this.analyzer = analyzer;
+        return this;
+    }
+
+    public String analyzer() {
+        return analyzer;
+    }
+
+    public JapanesePrefixQueryBuilder rewrite(String rewrite) {
+        this.rewrite = rewrite;
+        return this;
+    }
+
+    public String rewrite() {
+        return rewrite;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.startObject(fieldName);
+        builder.field(VALUE_FIELD.getPreferredName(), value);
+        if (analyzer != null) {
+            builder.field(ANALYZER_FIELD.getPreferredName(), analyzer);
+        }
+        if (rewrite != null) {
+            builder.field(REWRITE_FIELD.getPreferredName(), rewrite);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+        builder.endObject();
+    }
+
+    /**
+     * {
+     *     "FIELD" : STRING
+     * }
+     * or
+     * {
+     *     "FIELD" : {
+     *         "value" : STRING
+     *         "analyzer" : STRING
+     *         "rewrite" : STRING
+     *         "boost" : FLOAT
+     *         "_name" : STRING
+     *     }
+     * }
+     */
+    public static Optional<JapanesePrefixQueryBuilder> fromXContent(QueryParseContext parseContext) throws IOException {
+        XContentParser parser = parseContext.parser();
+
+        String fieldName = null;
+        String value = null;
+        String analyzer = null;
+        String rewrite = null;
+        String queryName = null;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                throwParsingExceptionOnMultipleFields(NAME, parser.getTokenLocation(), fieldName, currentFieldName);
+                fieldName = currentFieldName;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if (VALUE_FIELD.match(currentFieldName)) {
+                        value = parser.textOrNull();
+                    } else if (ANALYZER_FIELD.match(currentFieldName)) {
+                        analyzer = parser.text();
+                    } else if (REWRITE_FIELD.match(currentFieldName)) {
+                        rewrite = parser.textOrNull();
+                    } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName)) {
+                        boost = parser.floatValue();
+                    } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName)) {
+                        queryName = parser.text();
+                    } else {
+                        throw new ParsingException(parser.getTokenLocation(),
+                                "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                    }
+                }
+            } else {
+                throwParsingExceptionOnMultipleFields(NAME, parser.getTokenLocation(), fieldName, parser.currentName());
+                fieldName = currentFieldName;
+                value = parser.textOrNull();
+            }
+        }
+
+        if (value == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires [value]");
+        }
+        return Optional.of(new JapanesePrefixQueryBuilder(fieldName, value)
+                .analyzer(analyzer)
+                .rewrite(rewrite)
+                .boost(boost)
+                .queryName(queryName));
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        String field = fieldType == null ? fieldName : fieldType.name();
+        String analyzerName = analyzer == null ? DEFAULT_ANALYZER : analyzer;
+        Analyzer keystrokeAnalyzer = context.getIndexAnalyzers().get(analyzerName);
+        if (keystrokeAnalyzer == null) {
+            throw new QueryShardException(context, "[" + NAME + "] analyzer [" + analyzerName + "] not found");
+        }
+
+        List<Automaton> prefixes = new ArrayList<>();
+        for (BytesRef keystroke : analyze(keystrokeAnalyzer, field, value)) {
+            prefixes.add(PrefixQuery.toAutomaton(keystroke));
+        }
+        if (prefixes.isEmpty()) {
+            return new MatchNoDocsQuery("no keystrokes for [" + value + "]");
+        }
+
+        MultiTermQuery.RewriteMethod method = QueryParsers.parseRewriteMethod(rewrite, null);
+        AutomatonQuery query = new AutomatonQuery(new Term(field, value), Operations.union(prefixes),
+                Operations.DEFAULT_MAX_DETERMINIZED_STATES, true);
+        if (method != null) {
+            query.setRewriteMethod(method);
+        }
+
+        // Same as japanese_completion. If input contains Kanji, matching terms have to contain those Kanji.
+        int kanji = KuromojiSuggestTokenizer.lastIndexOfKanji(value);
+        if (kanji < 0) {
+            return query;
+        }
+        List<BytesRef> tokens = analyze(keystrokeAnalyzer, field, value.substring(0, kanji + 1));
+        // Surface form is the last token.
+        PrefixQuery surfaceFormQuery = new PrefixQuery(new Term(field, tokens.get(tokens.size() - 1)));
+        if (method != null) {
+            surfaceFormQuery.setRewriteMethod(method);
+        }
+        return new BooleanQuery.Builder()
+                .add(query, BooleanClause.Occur.MUST)
+                .add(surfaceFormQuery, BooleanClause.Occur.FILTER)
+                .build();
+    }
+
+    private static List<BytesRef> analyze(Analyzer analyzer, String field, String text) throws IOException {
+        List<BytesRef> terms = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(field, text)) {
+            TermToBytesRefAttribute termAtt = stream.addAttribute(TermToBytesRefAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                BytesRef term = termAtt.getBytesRef();
+                if (term.length > 0) {
+                    terms.add(BytesRef.deepCopyOf(term));
+                }
+            }
+            stream.end();
+        }
+        return terms;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, value, analyzer, rewrite);
+    }
+
+    @Override
+    protected boolean doEquals(JapanesePrefixQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName) &&
+                Objects.equals(value, other.value) &&
+                Objects.equals(analyzer, other.analyzer) &&
+                Objects.equals(rewrite, other.rewrite);
+    }
+}
@@ -0,0 +1,168 @@
+package org.elasticsearch.ingest;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer;
+import org.elasticsearch.index.analysis.KuromojiSuggestTokenizer;
+import org.elasticsearch.index.analysis.UnicodeNormalizationCharFilter;
+import org.elasticsearch.index.mapper.CompletionFieldMapper;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readBooleanProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readIntProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
+
+/**
+ * A processor that runs the expensive part of "kuromoji_suggest" analysis on ingest nodes.
+ *
+ * Values of "field" are written to "target_field" with their readings in "surface《reading》" form
+ * so that data nodes can skip {@link JapaneseTokenizer}. Values whose reading can't be written in Kana are left as is.
+ * So are values that would get longer than "max_input_length" because completion fields cut inputs at their
+ * max_input_length, which would drop the closing "》". Completion objects ({"input": ..., "weight": ...}) get their
+ * inputs processed. Keystroke expansion still runs on data nodes.
+ */
+public final class KuromojiSuggestProcessor extends AbstractProcessor {
+    public static final String TYPE = "kuromoji_suggest";
+
+    private static final Analyzer READING_ANALYZER = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            return new TokenStreamComponents(new JapaneseTokenizer(null, false, JapaneseTokenizer.Mode.NORMAL));
+        }
+
+        @Override
+        protected Reader initReader(String fieldName, Reader reader) {
+            // Same normalization as KuromojiSuggestAnalyzer
+            return new UnicodeNormalizationCharFilter(reader, Normalizer.Form.NFKC, false);
+        }
+    };
+
+    private final String field;
+    private final String targetField;
+    private final boolean ignoreMissing;
+    private final int maxInputLength;
+
+    KuromojiSuggestProcessor(String tag, String field, String targetField, boolean ignoreMissing, int maxInputLength) {
+        super(tag);
+        this.field = field;
+        this.targetField = targetField;
+        this.ignoreMissing = ignoreMissing;
+        this.maxInputLength = maxInputLength;
+    }
+
+    @Override
+    public void execute(IngestDocument document) throws Exception {
+        Object value = document.getFieldValue(this.field, Object.class, this.ignoreMissing);
+        if (value == null) {
+            if (this.ignoreMissing) {
+                return;
+            }
+            throw new IllegalArgumentException("field [" + this.field + "] is null, cannot process it.");
+        }
+
+        Object processed;
+        if (value instanceof List) {
+            List<Object> values = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                if (element instanceof Map) {
+                    values.add(processCompletion((Map<?, ?>) element));
+                } else {
+                    values.add(processInput(element, "[String] or [Map]"));
+                }
+            }
+            processed = values;
+        } else if (value instanceof Map) {
+            processed = processCompletion((Map<?, ?>) value);
+        } else {
+            processed = processInput(value, "[String], [Map] or [List]");
+        }
+
+        document.setFieldValue(this.targetField, processed);
+    }
+
+    // Same as the completion field accepts: "input" is a string or a list of strings. Other keys are kept.
+    private Map<Object, Object> processCompletion(Map<?, ?> completion) throws IOException {
+        Object input = completion.get("input");
+        if (input == null) {
+            throw new IllegalArgumentException("field [" + this.field + "] has a completion object without [input]");
+        }
+        Map<Object, Object> processed = new LinkedHashMap<>(completion);
+        if (input instanceof List) {
+            List<String> inputs = new ArrayList<>();
+            for (Object element : (List<?>) input) {
+                inputs.add(processInput(element, "[String]"));
+            }
+            processed.put("input", inputs);
+        } else {
+            processed.put("input", processInput(input, "[String] or [List]"));
+        }
+        return processed;
+    }
+
+    private String processInput(Object input, String expected) throws IOException {
+        if (input instanceof String == false) {
+            throw new IllegalArgumentException("field [" + this.field + "] of type [" + input.getClass().getName() +
+                    "] cannot be processed. Expected " + expected);
+        }
+        return withReading((String) input);
+    }
+
+    private String withReading(String input) throws IOException {
+        if (KuromojiSuggestTokenizer.readingStart(input) >= 0) {
+            return input;
+        }
+
+        String reading;
+        try (TokenStream stream = READING_ANALYZER.tokenStream(this.field, input)) {
+            stream.reset();
+            reading = KuromojiSuggestTokenizer.readReading(stream, new StringBuilder());
+            stream.end();
+        }
+
+        String withReading = input + "《" + reading + "》";
+        if (withReading.length() > this.maxInputLength) {
+            // The completion field would cut the reading off. Leave it to data nodes.
+            return input;
+        }
+        return KuromojiSuggestTokenizer.readingStart(withReading) >= 0 ? withReading : input;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    String getField() {
+        return field;
+    }
+
+    String getTargetField() {
+        return targetField;
+    }
+
+    public static final class Factory implements Processor.Factory {
+        @Override
+        public KuromojiSuggestProcessor create(Map<String, Processor.Factory> registry, String processorTag,
+                                               Map<String, Object> config) throws Exception {
+            String field = readStringProperty(TYPE, processorTag, config, "field");
+            String targetField = readStringProperty(TYPE, processorTag, config, "target_field", field);
+            boolean ignoreMissing = readBooleanProperty(TYPE, processorTag, config, "ignore_missing", false);
+            int maxInputLength = readIntProperty(TYPE, processorTag, config, "max_input_length",
+                    CompletionFieldMapper.Defaults.DEFAULT_MAX_INPUT_LENGTH);
+
+            if (maxInputLength <= 0) {
+                throw newConfigurationException(TYPE, processorTag, "max_input_length", "must be > 0");
+            }
+
+            return new KuromojiSuggestProcessor(processorTag, field, targetField, ignoreMissing, maxInputLength);
+        }
+    }
+}
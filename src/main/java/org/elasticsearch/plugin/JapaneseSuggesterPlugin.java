@@ -1,18 +1,35 @@
 package org.elasticsearch.plugin;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.index.analysis.AnalyzerProvider;
 import org.elasticsearch.index.analysis.CharFilterFactory;
 import org.elasticsearch.index.analysis.KuromojiSuggestAnalyzerProvider;
 import org.elasticsearch.index.analysis.KuromojiSuggestTokenizerFactory;
+import org.elasticsearch.index.analysis.KuromojiSuggestWarmer;
 import org.elasticsearch.index.analysis.TokenizerFactory;
 import org.elasticsearch.index.analysis.UnicodeNormalizationCharFilterFactory;
+import org.elasticsearch.index.query.JapanesePrefixQueryBuilder;
 import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.ingest.KuromojiSuggestProcessor;
+import org.elasticsearch.ingest.Processor;
 import org.elasticsearch.plugins.AnalysisPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.suggest.completion.JapaneseCompletionBreakerBinder;
+import org.elasticsearch.search.suggest.completion.JapaneseCompletionSuggester;
 import org.elasticsearch.search.suggest.completion.JapaneseCompletionSuggestionBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,7 +37,24 @@ import java.util.Map;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 
-public class JapaneseSuggesterPlugin extends Plugin implements AnalysisPlugin, SearchPlugin {
+public class JapaneseSuggesterPlugin extends Plugin implements AnalysisPlugin, SearchPlugin, IngestPlugin {
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry) {
+        return singletonList(new KuromojiSuggestWarmer(clusterService.getSettings(), threadPool));
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> getGuiceServiceClasses() {
+        return singletonList(JapaneseCompletionBreakerBinder.class);
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(KuromojiSuggestWarmer.WARMUP_SETTING, JapaneseCompletionSuggester.PREFIX_CACHE_MAX_LENGTH_SETTING);
+    }
+
     @Override
     public Map<String, AnalysisModule.AnalysisProvider<CharFilterFactory>> getCharFilters() {
         return singletonMap("unicode_normalize", UnicodeNormalizationCharFilterFactory::new);
@@ -39,9 +73,20 @@ public class JapaneseSuggesterPlugin extends Plugin implements AnalysisPlugin, S
         return analyzers;
     }
 
+    @Override
+    public List<QuerySpec<?>> getQueries() {
+        return singletonList(new QuerySpec<>(JapanesePrefixQueryBuilder.NAME,
+                JapanesePrefixQueryBuilder::new, JapanesePrefixQueryBuilder::fromXContent));
+    }
+
     @Override
     public List<SuggesterSpec<?>> getSuggesters() {
         return singletonList(new SuggesterSpec<>(JapaneseCompletionSuggestionBuilder.SUGGESTION_NAME,
                 JapaneseCompletionSuggestionBuilder::new, JapaneseCompletionSuggestionBuilder::fromXContent));
     }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
+        return singletonMap(KuromojiSuggestProcessor.TYPE, new KuromojiSuggestProcessor.Factory());
+    }
 }
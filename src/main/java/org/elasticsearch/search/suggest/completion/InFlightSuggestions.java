@@ -0,0 +1,146 @@
+package org.elasticsearch.search.suggest.completion;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.search.suggest.completion.context.ContextMapping;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces identical suggestions running concurrently.
+ *
+ * Popular prefixes are requested by many clients at the same time. Only the first one collects suggestions,
+ * the others wait for it and get copies of its result. Nothing is kept once the suggestion is done.
+ */
+class InFlightSuggestions {
+    private final ConcurrentMap<Key, CompletableFuture<CompletionSuggestion>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Collects suggestions unless identical ones are being collected, in which case waits for them.
+     *
+     * @param name name of the suggestion to return
+     */
+    CompletionSuggestion execute(Key key, String name, CheckedSupplier<CompletionSuggestion, IOException> collect) throws IOException {
+        CompletableFuture<CompletionSuggestion> flight = new CompletableFuture<>();
+        CompletableFuture<CompletionSuggestion> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return copy(name, await(leader));
+        }
+
+        try {
+            CompletionSuggestion suggestion = collect.get();
+            flight.complete(suggestion);
+            return suggestion;
+        } catch (IOException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    int count() {
+        return inFlight.size();
+    }
+
+    private static CompletionSuggestion await(CompletableFuture<CompletionSuggestion> leader) throws IOException {
+        try {
+            return leader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("interrupted while waiting for suggestions", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ElasticsearchException(cause);
+        }
+    }
+
+    // Options are modified later in the search (shard index, hits). Each request needs its own.
+    private static CompletionSuggestion copy(String name, CompletionSuggestion suggestion) {
+        if (suggestion == null) {
+            return null;
+        }
+        CompletionSuggestion copy = new CompletionSuggestion(name, suggestion.getSize());
+        for (CompletionSuggestion.Entry entry : suggestion.getEntries()) {
+            CompletionSuggestion.Entry entryCopy = new CompletionSuggestion.Entry(entry.getText(), entry.getOffset(), entry.getLength());
+            for (CompletionSuggestion.Entry.Option option : entry.getOptions()) {
+                entryCopy.addOption(new CompletionSuggestion.Entry.Option(option.getDoc().doc, option.getText(), option.getScore(),
+                        option.getContexts()));
+            }
+            copy.addTerm(entryCopy);
+        }
+        return copy;
+    }
+
+    /**
+     * Everything that affects suggestions collected from a shard.
+     * Reader and analyzer are compared by identity.
+     */
+    static final class Key {
+        private final IndexReader reader;
+        private final String field;
+        // Boosts of the fields including the main one. Empty unless "fields" is set.
+        private final Map<String, Float> fields;
+        private final String text;
+        private final Analyzer analyzer;
+        private final int size;
+        private final FuzzyOptions fuzzyOptions;
+        private final RegexOptions regexOptions;
+        private final Map<String, List<ContextMapping.InternalQueryContext>> queryContexts;
+        private final boolean skipDuplicates;
+
+        Key(IndexReader reader, String field, Map<String, Float> fields, String text, Analyzer analyzer, int size,
+            FuzzyOptions fuzzyOptions, RegexOptions regexOptions, Map<String, List<ContextMapping.InternalQueryContext>> queryContexts,
+            boolean skipDuplicates) {
+            this.reader = reader;
+            this.field = field;
+            this.fields = fields;
+            this.text = text;
+            this.analyzer = analyzer;
+            this.size = size;
+            this.fuzzyOptions = fuzzyOptions;
+            this.regexOptions = regexOptions;
+            this.queryContexts = queryContexts;
+            this.skipDuplicates = skipDuplicates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return size == key.size &&
+                    skipDuplicates == key.skipDuplicates &&
+                    reader == key.reader &&
+                    analyzer == key.analyzer &&
+                    field.equals(key.field) &&
+                    fields.equals(key.fields) &&
+                    text.equals(key.text) &&
+                    Objects.equals(fuzzyOptions, key.fuzzyOptions) &&
+                    Objects.equals(regexOptions, key.regexOptions) &&
+                    Objects.equals(queryContexts, key.queryContexts);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(reader), field, fields, text, size, fuzzyOptions, regexOptions, queryContexts,
+                    skipDuplicates);
+        }
+    }
+}
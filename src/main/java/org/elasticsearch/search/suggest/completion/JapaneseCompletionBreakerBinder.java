@@ -0,0 +1,35 @@
+package org.elasticsearch.search.suggest.completion;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+
+import java.io.IOException;
+
+/**
+ * Hands the request circuit breaker of the node to {@link JapaneseCompletionSuggester}.
+ * Plugins can't get {@link CircuitBreakerService} other than by injection.
+ */
+public class JapaneseCompletionBreakerBinder extends AbstractLifecycleComponent {
+    private final CircuitBreakerService circuitBreakerService;
+
+    @Inject
+    public JapaneseCompletionBreakerBinder(Settings settings, CircuitBreakerService circuitBreakerService) {
+        super(settings);
+        this.circuitBreakerService = circuitBreakerService;
+    }
+
+    @Override
+    protected void doStart() {
+        JapaneseCompletionSuggester.INSTANCE.setCircuitBreakerService(circuitBreakerService);
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+    }
+}
@@ -1,40 +1,208 @@
 package org.elasticsearch.search.suggest.completion;
 
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.BulkScorer;
 import org.apache.lucene.search.CollectionTerminatedException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.document.CompletionAnalyzer;
 import org.apache.lucene.search.suggest.document.CompletionQuery;
+import org.apache.lucene.search.suggest.document.CompletionTerms;
+import org.apache.lucene.search.suggest.document.CompletionWeight;
+import org.apache.lucene.search.suggest.document.PrefixCompletionQuery;
 import org.apache.lucene.search.suggest.document.TopSuggestDocs;
 import org.apache.lucene.search.suggest.document.TopSuggestDocsCollector;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.CharsRefBuilder;
 import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.analysis.CompactLabelFilter;
+import org.elasticsearch.index.analysis.KuromojiSuggestAnalyzer;
+import org.elasticsearch.index.analysis.KuromojiSuggestTokenizer;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.mapper.CompletionFieldMapper;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.search.suggest.Suggest;
 import org.elasticsearch.search.suggest.Suggester;
 
 import java.io.IOException;
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSuggestionContext> {
     public static final JapaneseCompletionSuggester INSTANCE = new JapaneseCompletionSuggester();
 
+    /**
+     * Suggestions for inputs up to this length are cached per segment. 0 disables the cache.
+     */
+    public static final Setting<Integer> PREFIX_CACHE_MAX_LENGTH_SETTING = Setting.intSetting(
+            "index.japanese_completion.prefix_cache.max_length", 2, 0, Setting.Property.IndexScope, Setting.Property.Dynamic);
+
+    /**
+     * Response header that lists suggestions that timed out and returned partial results.
+     */
+    public static final String TIMED_OUT_HEADER = "Japanese-Completion-Timed-Out";
+
+    private static final Logger LOGGER = Loggers.getLogger(JapaneseCompletionSuggester.class);
+
+    private final PrefixSuggestionCache prefixCache = new PrefixSuggestionCache();
+
+    private final SuggestSessions sessions = new SuggestSessions();
+
+    private final InFlightSuggestions inFlightSuggestions = new InFlightSuggestions();
+
+    // Leaves not collected because their max weight can't compete.
+    private final CounterMetric skippedLeaves = new CounterMetric();
+
+    // Leaves not collected because no term starts with the Kanji prefix of the input.
+    private final CounterMetric prunedLeaves = new CounterMetric();
+
+    private volatile CircuitBreakerService circuitBreakerService;
+
     public JapaneseCompletionSuggester() {
     }
 
+    /**
+     * Memory to collect suggestions is reserved in the request circuit breaker once it's set.
+     * Suggesters are registered statically, so nodes of the same JVM (e.g. tests) share the breaker service of the last node started.
+     */
+    public void setCircuitBreakerService(CircuitBreakerService circuitBreakerService) {
+        this.circuitBreakerService = circuitBreakerService;
+    }
+
+    // Visible for testing
+    CircuitBreakerService circuitBreakerService() {
+        return circuitBreakerService;
+    }
+
+    // Visible for testing
+    PrefixSuggestionCache prefixCache() {
+        return prefixCache;
+    }
+
+    // Visible for testing
+    SuggestSessions sessions() {
+        return sessions;
+    }
+
+    // Visible for testing
+    InFlightSuggestions inFlightSuggestions() {
+        return inFlightSuggestions;
+    }
+
+    // Visible for testing
+    long skippedLeaves() {
+        return skippedLeaves.count();
+    }
+
+    // Visible for testing
+    long prunedLeaves() {
+        return prunedLeaves.count();
+    }
+
     @Override
     protected Suggest.Suggestion<? extends Suggest.Suggestion.Entry<? extends Suggest.Suggestion.Entry.Option>> innerExecute(
             String name, JapaneseCompletionSuggestionContext japaneseCompletionSuggestionContext, IndexSearcher searcher,
             CharsRefBuilder spare) throws IOException {
+        TimeValue timeout = japaneseCompletionSuggestionContext.getTimeout();
+        long deadline = timeout == null ? Long.MAX_VALUE : System.nanoTime() + timeout.nanos();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        String sessionId = japaneseCompletionSuggestionContext.getSessionId();
+        QueryShardContext shardContext = japaneseCompletionSuggestionContext.getShardContext();
+        SuggestSessions.Session session =
+                sessionId == null ? null : sessions.start(sessionId, new ShardId(shardContext.index(), shardContext.getShardId()));
+        CheckedSupplier<CompletionSuggestion, IOException> collect =
+                () -> collectSuggestions(name, japaneseCompletionSuggestionContext, searcher, spare, deadline, session, timedOut);
+        CompletionSuggestion suggestion;
+        try {
+            // Timeout and session make the result specific to the request.
+            if (timeout == null && session == null) {
+                CompletionSuggestionContext suggestionContext = japaneseCompletionSuggestionContext.getDelegate();
+                InFlightSuggestions.Key key = new InFlightSuggestions.Key(searcher.getIndexReader(), suggestionContext.getField(),
+                        fieldBoosts(japaneseCompletionSuggestionContext), suggestionContext.getText().utf8ToString(),
+                        suggestionContext.getAnalyzer(), suggestionContext.getSize(), suggestionContext.getFuzzyOptions(),
+                        suggestionContext.getRegexOptions(), suggestionContext.getQueryContexts(),
+                        japaneseCompletionSuggestionContext.isSkipDuplicates());
+                suggestion = inFlightSuggestions.execute(key, name, collect);
+            } else {
+                suggestion = collect.get();
+            }
+        } finally {
+            if (session != null) {
+                sessions.finish(session);
+            }
+        }
+        if (session != null && session.isCancelled()) {
+            LOGGER.debug("[{}] superseded by a newer suggestion of session [{}]", name, sessionId);
+        }
+        if (timedOut.get()) {
+            LOGGER.debug("[{}] timed out after [{}], returning partial suggestions", name, timeout);
+            japaneseCompletionSuggestionContext.getThreadContext().addResponseHeader(TIMED_OUT_HEADER, name);
+        }
+        if (suggestion != null && japaneseCompletionSuggestionContext.isLightweight()) {
+            return lightweight(suggestion);
+        }
+        return suggestion;
+    }
+
+    private static Map<String, Float> fieldBoosts(JapaneseCompletionSuggestionContext context) {
+        if (context.getOtherFields().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Float> boosts = new HashMap<>();
+        boosts.put(context.getDelegate().getField(), context.getBoost());
+        context.getOtherFields().forEach((fieldType, boost) -> boosts.put(fieldType.name(), boost));
+        return boosts;
+    }
 
+    /**
+     * Converts to a plain suggestion. Fetch phase loads documents of completion suggestions only,
+     * so options of the plain one are returned without stored fields loaded. Its wire format can't carry
+     * more than text and score, contexts are dropped too.
+     */
+    static Suggest.Suggestion<Suggest.Suggestion.Entry<Suggest.Suggestion.Entry.Option>> lightweight(CompletionSuggestion suggestion) {
+        Suggest.Suggestion<Suggest.Suggestion.Entry<Suggest.Suggestion.Entry.Option>> lightweight =
+                new Suggest.Suggestion<>(suggestion.getName(), suggestion.getSize());
+        for (CompletionSuggestion.Entry entry : suggestion.getEntries()) {
+            Suggest.Suggestion.Entry<Suggest.Suggestion.Entry.Option> lightweightEntry =
+                    new Suggest.Suggestion.Entry<>(entry.getText(), entry.getOffset(), entry.getLength());
+            for (CompletionSuggestion.Entry.Option option : entry.getOptions()) {
+                lightweightEntry.addOption(new Suggest.Suggestion.Entry.Option(option.getText(), option.getScore()));
+            }
+            lightweight.addTerm(lightweightEntry);
+        }
+        return lightweight;
+    }
+
+    private CompletionSuggestion collectSuggestions(String name, JapaneseCompletionSuggestionContext japaneseCompletionSuggestionContext,
+                                                    IndexSearcher searcher, CharsRefBuilder spare, long deadline,
+                                                    SuggestSessions.Session session, AtomicBoolean timedOut) throws IOException {
         CompletionSuggestionContext suggestionContext = japaneseCompletionSuggestionContext.getDelegate();
 
         if (suggestionContext.getFieldType() == null) {
@@ -44,7 +212,7 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
         // We need to filter options by prefix.
         // If query contains Kanji, results have to contain those Kanji.
         String input = suggestionContext.getText().utf8ToString();
-        int index = lastIndexOfKanji(input);
+        int index = KuromojiSuggestTokenizer.lastIndexOfKanji(input);
 
         String prefix = null;
         if (index >= 0) {
@@ -59,46 +227,194 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
         completionSuggestion.addTerm(completionSuggestEntry);
         // It needs to collect more than requested since documents may be filtered.
         // Terminate collection when original size is met.
-        TopSuggestDocsCollector collector =
-                new FilteredTopDocumentsCollector(
-                        Math.max(searcher.getIndexReader().numDocs(), suggestionContext.getSize()), suggestionContext.getSize(), prefix);
-        suggest(searcher, suggestionContext.toQuery(), collector);
-        int numResult = 0;
-        for (TopSuggestDocs.SuggestScoreDoc suggestScoreDoc : collector.get().scoreLookupDocs()) {
-            FilteredTopDocumentsCollector.SuggestDoc suggestDoc =
-                    (FilteredTopDocumentsCollector.SuggestDoc) suggestScoreDoc;
-            // collect contexts
-            Map<String, Set<CharSequence>> contexts = Collections.emptyMap();
-            if (fieldType.hasContextMappings() && suggestDoc.getContexts().isEmpty() == false) {
-                contexts = fieldType.getContextMappings().getNamedContexts(suggestDoc.getContexts());
-            }
-            if (numResult++ < suggestionContext.getSize()) {
+        int num = Math.max(searcher.getIndexReader().numDocs(), suggestionContext.getSize());
+        Map<CompletionFieldMapper.CompletionFieldType, Float> otherFields = japaneseCompletionSuggestionContext.getOtherFields();
+        // Each field of each leaf is collected as if it were a leaf.
+        int queueSize = FilteredTopDocumentsCollector.queueSize(num, suggestionContext.getSize(),
+                japaneseCompletionSuggestionContext.isSkipDuplicates(),
+                searcher.getIndexReader().leaves().size() * (otherFields.size() + 1));
+        // Account collector and keystrokes of the input before allocating them.
+        long bytes = FilteredTopDocumentsCollector.estimateBytes(queueSize) + expansionBytes(
+                kuromojiSuggestAnalyzer(suggestionContext.getAnalyzer(), suggestionContext.getShardContext()), input);
+        // The breaker is replaced when its limit is updated. Get the current one.
+        CircuitBreakerService circuitBreakerService = this.circuitBreakerService;
+        CircuitBreaker breaker = circuitBreakerService == null ? null : circuitBreakerService.getBreaker(CircuitBreaker.REQUEST);
+        if (breaker != null) {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "<japanese_completion>");
+        }
+        try {
+            FilteredTopDocumentsCollector collector = new FilteredTopDocumentsCollector(num, queueSize, suggestionContext.getSize(),
+                    prefix, japaneseCompletionSuggestionContext.isSkipDuplicates(), deadline, session);
+            boolean cacheable = suggestionContext.getFuzzyOptions() == null && suggestionContext.getRegexOptions() == null
+                    && suggestionContext.getQueryContexts().isEmpty()
+                    && input.length() <= suggestionContext.getShardContext().getIndexSettings().getValue(PREFIX_CACHE_MAX_LENGTH_SETTING);
+            // Scores are bounded by max weight of the segment unless they are boosted by contexts
+            // or by the length of exact prefix for fuzzy queries.
+            // Terms are prefixed by contexts too. Don't look into them.
+            boolean plainTerms = fieldType.hasContextMappings() == false;
+            boolean boundedScores = suggestionContext.getFuzzyOptions() == null;
+            CompletionQuery query = (CompletionQuery) suggestionContext.toQuery().rewrite(searcher.getIndexReader());
+            Weight weight = query.createWeight(searcher, collector.needsScores());
+            List<Target> targets = new ArrayList<>(otherFields.size() + 1);
+            targets.add(target(fieldType, japaneseCompletionSuggestionContext.getBoost(), weight, plainTerms && boundedScores,
+                    plainTerms, prefix, cacheable, japaneseCompletionSuggestionContext));
+            if (otherFields.isEmpty() == false) {
+                BytesRef text = suggestionContext.getPrefix() != null ? suggestionContext.getPrefix() : suggestionContext.getText();
+                for (Map.Entry<CompletionFieldMapper.CompletionFieldType, Float> entry : otherFields.entrySet()) {
+                    Weight otherWeight = otherFieldWeight(searcher, entry.getKey(), text, fieldType, weight, collector.needsScores());
+                    targets.add(target(entry.getKey(), entry.getValue(), otherWeight, boundedScores, true, prefix, cacheable,
+                            japaneseCompletionSuggestionContext));
+                }
+            }
+            suggest(searcher, targets, collector);
+            timedOut.set(collector.isTimedOut());
+            // The collector returns the top "size" suggestions only.
+            // Contexts and texts are resolved for them, not for everything collected.
+            for (TopSuggestDocs.SuggestScoreDoc suggestScoreDoc : collector.get().scoreLookupDocs()) {
+                FilteredTopDocumentsCollector.SuggestDoc suggestDoc =
+                        (FilteredTopDocumentsCollector.SuggestDoc) suggestScoreDoc;
+                // collect contexts
+                Map<String, Set<CharSequence>> contexts = Collections.emptyMap();
+                if (fieldType.hasContextMappings() && suggestDoc.hasContexts()) {
+                    contexts = fieldType.getContextMappings().getNamedContexts(suggestDoc.getContexts());
+                }
                 CompletionSuggestion.Entry.Option option = new CompletionSuggestion.Entry.Option(suggestDoc.doc,
-                        new Text(suggestDoc.key.toString()), suggestDoc.score, contexts);
+                        new Text(surfaceForm(suggestDoc.key)), suggestDoc.score, contexts);
                 completionSuggestEntry.addOption(option);
-            } else {
-                break;
             }
+            return completionSuggestion;
+        } finally {
+            if (breaker != null) {
+                breaker.addWithoutBreaking(-bytes);
+            }
+        }
+    }
+
+
+    private Target target(CompletionFieldMapper.CompletionFieldType fieldType, float boost, Weight weight, boolean skipByMaxWeight,
+                          boolean plainTerms, String prefix, boolean cacheable, JapaneseCompletionSuggestionContext context) {
+        // Only kuromoji_suggest analyzers are known to index the surface form as a term. Suggestions of other fields
+        // (e.g. "standard" indexes "東\u001F京", custom ones may change it with filters) are post-filtered.
+        KuromojiSuggestAnalyzer indexAnalyzer = kuromojiSuggestAnalyzer(fieldType.indexAnalyzer(), context.getShardContext());
+        BytesRef requiredPrefix = plainTerms && prefix != null && indexAnalyzer != null
+                ? new BytesRef(toTerm(prefix, indexAnalyzer)) : null;
+        // Scores are cached before boosting.
+        CompletionSuggestionContext suggestionContext = context.getDelegate();
+        CacheContext cacheContext = cacheable ? new CacheContext(prefixCache, fieldType.name(), suggestionContext.getText().utf8ToString(),
+                suggestionContext.getAnalyzer(), suggestionContext.getSize(), context.isSkipDuplicates()) : null;
+        return new Target(fieldType.name(), boost, weight, skipByMaxWeight, requiredPrefix, cacheContext);
+    }
+
+    /**
+     * Weight of another field. Fields analyzed the same way as the main one share its automaton,
+     * so the input is analyzed once however many fields there are.
+     */
+    private static Weight otherFieldWeight(IndexSearcher searcher, CompletionFieldMapper.CompletionFieldType fieldType, BytesRef text,
+                                           CompletionFieldMapper.CompletionFieldType mainFieldType, Weight mainWeight,
+                                           boolean needsScores) throws IOException {
+        CompletionQuery query = fieldType.prefixQuery(text);
+        if (mainWeight.getClass() == CompletionWeight.class && mainWeight.getQuery() instanceof PrefixCompletionQuery
+                && fieldType.searchAnalyzer().name().equals(mainFieldType.searchAnalyzer().name())
+                && fieldType.preserveSep() == mainFieldType.preserveSep()
+                && fieldType.preservePositionIncrements() == mainFieldType.preservePositionIncrements()) {
+            return new CompletionWeight(query, ((CompletionWeight) mainWeight).getAutomaton());
         }
-        return completionSuggestion;
+        return ((CompletionQuery) query.rewrite(searcher.getIndexReader())).createWeight(searcher, needsScores);
     }
 
+    private static long expansionBytes(KuromojiSuggestAnalyzer analyzer, String input) {
+        return analyzer == null ? 0 : analyzer.estimateExpansionBytes(input.length());
+    }
 
-    private int lastIndexOfKanji(String input) {
-        for (int i = input.length() - 1; i >= 0; i--) {
-            if (Character.UnicodeBlock.of(input.charAt(i)).equals(Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS)) {
-                return i;
+    /**
+     * Returns the analyzer if it's kuromoji_suggest one, otherwise null.
+     * Completion fields wrap their analyzers in {@link CompletionAnalyzer}. Such ones are looked up by name.
+     */
+    static KuromojiSuggestAnalyzer kuromojiSuggestAnalyzer(Analyzer analyzer, QueryShardContext context) {
+        if (analyzer instanceof NamedAnalyzer) {
+            NamedAnalyzer namedAnalyzer = (NamedAnalyzer) analyzer;
+            if (namedAnalyzer.analyzer() instanceof CompletionAnalyzer) {
+                NamedAnalyzer registered = context.getIndexAnalyzers().get(namedAnalyzer.name());
+                if (registered != null) {
+                    namedAnalyzer = registered;
+                }
             }
+            analyzer = namedAnalyzer.analyzer();
         }
+        return analyzer instanceof KuromojiSuggestAnalyzer ? (KuromojiSuggestAnalyzer) analyzer : null;
+    }
+
+    // Strip explicit reading if any.
+    private static String surfaceForm(CharSequence key) {
+        return key.subSequence(0, surfaceLength(key)).toString();
+    }
 
-        return -1;
+    private static int surfaceLength(CharSequence key) {
+        int readingStart = KuromojiSuggestTokenizer.readingStart(key);
+        return readingStart >= 0 ? readingStart : key.length();
     }
 
-    private static void suggest(IndexSearcher searcher, CompletionQuery query, TopSuggestDocsCollector collector) throws IOException {
-        query = (CompletionQuery) query.rewrite(searcher.getIndexReader());
-        Weight weight = query.createWeight(searcher, collector.needsScores());
-        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
-            BulkScorer scorer = weight.bulkScorer(context);
+    /**
+     * Collects suggestions of the fields. Each field of each leaf is collected as if it were a leaf.
+     * If scores of all the fields are bounded by max weights, field-leaf pairs are visited in descending order
+     * of boosted max weight and skipped once they can't produce competitive suggestions.
+     * So, fields that can't compete cost a lookup of their max weights only.
+     */
+    private void suggest(IndexSearcher searcher, List<Target> targets, FilteredTopDocumentsCollector collector)
+            throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        boolean skipByMaxWeight = true;
+        List<TargetLeaf> targetLeaves = new ArrayList<>(targets.size() * leaves.size());
+        for (Target target : targets) {
+            skipByMaxWeight &= target.skipByMaxWeight;
+            for (LeafReaderContext context : leaves) {
+                double maxScore = target.skipByMaxWeight
+                        ? (double) maxWeight(context.reader(), target.field) * target.boost : Double.POSITIVE_INFINITY;
+                targetLeaves.add(new TargetLeaf(target, context, maxScore));
+            }
+        }
+        if (skipByMaxWeight) {
+            targetLeaves.sort((t1, t2) -> Double.compare(t2.maxScore, t1.maxScore));
+        }
+
+        for (int i = 0; i < targetLeaves.size(); i++) {
+            TargetLeaf targetLeaf = targetLeaves.get(i);
+            Target target = targetLeaf.target;
+            LeafReaderContext context = targetLeaf.context;
+            if (collector.checkTerminated()) {
+                // Return what has been collected so far.
+                break;
+            }
+
+            if (skipByMaxWeight && targetLeaf.maxScore < collector.minCompetitiveScore()) {
+                // Sorted by max score. None of the rest can compete.
+                skippedLeaves.inc(targetLeaves.size() - i);
+                break;
+            }
+
+            if (target.requiredPrefix != null && hasTermWithPrefix(context.reader(), target.field, target.requiredPrefix) == false) {
+                prunedLeaves.inc();
+                continue;
+            }
+
+            collector.setBoost(target.boost);
+            if (target.cacheContext != null) {
+                List<PrefixSuggestionCache.Collected> cached = target.cacheContext.get(context.reader());
+                if (cached != null) {
+                    try {
+                        collector.replay(context, cached);
+                    } catch (CollectionTerminatedException e) {
+                        // timed out or cancelled
+                    }
+                    if (LOGGER.isTraceEnabled()) {
+                        collector.traceLeaf(target.field, context, true);
+                    }
+                    continue;
+                }
+                collector.startRecording();
+            }
+
+            BulkScorer scorer = target.weight.bulkScorer(context);
             if (scorer != null) {
                 try {
                     scorer.score(collector.getLeafCollector(context), context.reader().getLiveDocs());
@@ -106,15 +422,124 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
                     // collection was terminated prematurely
                     // continue with the following leaf
                 }
+                if (LOGGER.isTraceEnabled()) {
+                    collector.traceLeaf(target.field, context, false);
+                }
             }
+
+            if (target.cacheContext != null) {
+                List<PrefixSuggestionCache.Collected> recorded = collector.stopRecording();
+                if (collector.isTerminated() == false) {
+                    // Don't cache partial results
+                    target.cacheContext.put(context.reader(), recorded);
+                }
+            }
+        }
+    }
+
+    private static long maxWeight(LeafReader reader, String field) throws IOException {
+        Terms terms = reader.terms(field);
+        if (terms instanceof CompletionTerms) {
+            return ((CompletionTerms) terms).getMaxWeight();
+        }
+        // Unknown. Don't skip.
+        return terms == null ? -1 : Long.MAX_VALUE;
+    }
+
+    private static boolean hasTermWithPrefix(LeafReader reader, String field, BytesRef prefix) throws IOException {
+        Terms terms = reader.terms(field);
+        if (terms == null) {
+            return false;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        return termsEnum.seekCeil(prefix) != TermsEnum.SeekStatus.END && StringHelper.startsWith(termsEnum.term(), prefix);
+    }
+
+    // Surface form as kuromoji_suggest analyzer indexes it.
+    private static String toTerm(String surfaceForm, KuromojiSuggestAnalyzer indexAnalyzer) {
+        String normalized = normalize(surfaceForm);
+        return indexAnalyzer != null && indexAnalyzer.isCompactLabels() ? CompactLabelFilter.encode(normalized) : normalized;
+    }
+
+    // Same normalization as kuromoji_suggest analyzers. NFKC and lowercase.
+    private static String normalize(String input) {
+        String normalized = Normalizer.normalize(input, Normalizer.Form.NFKC);
+        StringBuilder sb = new StringBuilder(normalized.length());
+        normalized.codePoints().map(Character::toLowerCase).forEach(sb::appendCodePoint);
+        return sb.toString();
+    }
+
+    /**
+     * A field to collect suggestions from.
+     */
+    private static final class Target {
+        private final String field;
+        private final float boost;
+        private final Weight weight;
+        // Whether scores are bounded by max weight of the leaf times the boost.
+        private final boolean skipByMaxWeight;
+        // If not null, leaves that don't have a term starting with it are skipped.
+        // kuromoji_suggest indexes surface form as a term. So, such leaves can't have suggestions starting with the prefix.
+        private final BytesRef requiredPrefix;
+        private final CacheContext cacheContext;
+
+        Target(String field, float boost, Weight weight, boolean skipByMaxWeight, BytesRef requiredPrefix, CacheContext cacheContext) {
+            this.field = field;
+            this.boost = boost;
+            this.weight = weight;
+            this.skipByMaxWeight = skipByMaxWeight;
+            this.requiredPrefix = requiredPrefix;
+            this.cacheContext = cacheContext;
+        }
+    }
+
+    private static final class TargetLeaf {
+        private final Target target;
+        private final LeafReaderContext context;
+        private final double maxScore;
+
+        TargetLeaf(Target target, LeafReaderContext context, double maxScore) {
+            this.target = target;
+            this.context = context;
+            this.maxScore = maxScore;
+        }
+    }
+
+    private static final class CacheContext {
+        private final PrefixSuggestionCache cache;
+        private final String field;
+        private final String input;
+        private final Analyzer analyzer;
+        private final int size;
+        private final boolean skipDuplicates;
+
+        CacheContext(PrefixSuggestionCache cache, String field, String input, Analyzer analyzer, int size, boolean skipDuplicates) {
+            this.cache = cache;
+            this.field = field;
+            this.input = input;
+            this.analyzer = analyzer;
+            this.size = size;
+            this.skipDuplicates = skipDuplicates;
+        }
+
+        List<PrefixSuggestionCache.Collected> get(LeafReader reader) {
+            return cache.get(reader, field, input, analyzer, size, skipDuplicates);
+        }
+
+        void put(LeafReader reader, List<PrefixSuggestionCache.Collected> collected) {
+            cache.put(reader, field, input, analyzer, size, skipDuplicates, collected);
         }
     }
 
     /**
      * Copied from CompletionSuggester.TopDocumentsCollector.
-     * TopDocumentsCollector that applies prefix filtering.
+     * TopDocumentsCollector that applies prefix filtering and optionally skips duplicate surface forms.
      */
     private static final class FilteredTopDocumentsCollector extends TopSuggestDocsCollector {
+        // Timeout and cancellation are checked every 16 collect calls.
+        private static final int TERMINATION_CHECK_INTERVAL_MASK = 0xF;
+        // Rough size of a collected suggestion including its key, context and map entry.
+        private static final long BYTES_PER_SUGGESTION = 256;
 
         /**
          * Holds a list of suggest meta data for a doc
@@ -147,6 +572,10 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
                 }
             }
 
+            boolean hasContexts() {
+                return context != null || suggestScoreDocs != null;
+            }
+
             List<CharSequence> getContexts() {
                 if (suggestScoreDocs == null) {
                     if (context != null) {
@@ -196,6 +625,16 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
                 }
                 return res;
             }
+
+            /**
+             * Returns the top n suggestions. Lower ones are discarded without being copied.
+             */
+            public FilteredTopDocumentsCollector.SuggestDoc[] getResults(int n) {
+                while (size() > n) {
+                    pop();
+                }
+                return getResults();
+            }
         }
 
         private final int num;
@@ -203,14 +642,83 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
         private final FilteredTopDocumentsCollector.SuggestDocPriorityQueue pq;
         private final Map<Integer, FilteredTopDocumentsCollector.SuggestDoc> scoreDocMap;
         private String prefix;
-
-        FilteredTopDocumentsCollector(int num, int terminateCount, String prefix) {
-            super(1, false); // TODO hack, we don't use the underlying pq, so we allocate a size of 1
+        private List<PrefixSuggestionCache.Collected> recording;
+        private final java.util.PriorityQueue<Float> topScores = new java.util.PriorityQueue<>();
+        // Surface forms collected from the current leaf and surface forms counted in topScores.
+        // Both are null unless duplicates are skipped.
+        private final CharArraySet leafSurfaces;
+        private final CharArraySet scoredSurfaces;
+        // System.nanoTime() to stop collection at.
+        private final long deadline;
+        // null unless the suggestion belongs to a session.
+        private final SuggestSessions.Session session;
+        private boolean timedOut;
+        private boolean cancelled;
+        private int numCollectCalls;
+        // Boost of the field being collected.
+        private float boost = 1;
+        // Statistics of the current leaf for tracing.
+        private int leafCollected;
+        private int leafRejected;
+        private boolean leafTerminated;
+
+        FilteredTopDocumentsCollector(int num, int queueSize, int terminateCount, String prefix, boolean skipDuplicates,
+                                      long deadline, SuggestSessions.Session session) {
+            // TODO hack, we don't use the underlying pq, so we allocate a size of 1
+            // With skipDuplicates, the FST search itself skips exact duplicate keys in a leaf without counting them.
+            super(1, skipDuplicates);
             this.num = num;
             this.terminate = terminateCount;
             this.scoreDocMap = new LinkedHashMap<>(terminateCount);
-            this.pq = new FilteredTopDocumentsCollector.SuggestDocPriorityQueue(num);
+            this.pq = new FilteredTopDocumentsCollector.SuggestDocPriorityQueue(queueSize);
             this.prefix = prefix;
+            this.leafSurfaces = skipDuplicates ? new CharArraySet(terminateCount, false) : null;
+            this.scoredSurfaces = skipDuplicates ? new CharArraySet(terminateCount, false) : null;
+            this.deadline = deadline;
+            this.session = session;
+        }
+
+        /**
+         * Number of suggestions the queue has to hold.
+         * Each leaf contributes at most terminateCount + 1 suggestions. Only the top terminateCount are returned
+         * unless duplicates are skipped, in which case suggestions of all leaves may be needed.
+         */
+        static int queueSize(int num, int terminateCount, boolean skipDuplicates, int numLeaves) {
+            if (skipDuplicates) {
+                return (int) Math.min(num, (long) (terminateCount + 1) * Math.max(numLeaves, 1));
+            }
+            return Math.min(num, terminateCount + 1);
+        }
+
+        /**
+         * Rough estimate of memory the collector takes with the queue size.
+         */
+        static long estimateBytes(int queueSize) {
+            // Priority queue preallocates its heap. Suggestions in the queue and the ones being collected from a leaf.
+            return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + (long) (queueSize + 1) * RamUsageEstimator.NUM_BYTES_OBJECT_REF)
+                    + 2L * queueSize * BYTES_PER_SUGGESTION;
+        }
+
+        /**
+         * Returns true if the deadline has passed or the session has moved on to a newer suggestion.
+         */
+        boolean checkTerminated() {
+            if (timedOut == false && System.nanoTime() > deadline) {
+                timedOut = true;
+            }
+            if (cancelled == false && session != null && session.isCancelled()) {
+                cancelled = true;
+            }
+            return isTerminated();
+        }
+
+        boolean isTerminated() {
+            return timedOut || cancelled;
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
         }
 
         @Override
@@ -225,6 +733,17 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
         protected void doSetNextReader(LeafReaderContext context) throws IOException {
             super.doSetNextReader(context);
             updateResults();
+            if (leafSurfaces != null) {
+                leafSurfaces.clear();
+            }
+            leafCollected = 0;
+            leafRejected = 0;
+            leafTerminated = false;
+        }
+
+        void traceLeaf(String field, LeafReaderContext context, boolean cached) {
+            LOGGER.trace("[{}] leaf [{}]: collected [{}], rejected [{}], terminated [{}], cached [{}]",
+                    field, context.ord, leafCollected, leafRejected, leafTerminated, cached);
         }
 
         private void updateResults() {
@@ -232,24 +751,89 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
                 if (pq.insertWithOverflow(suggestDoc) == suggestDoc) {
                     break;
                 }
+                // Another leaf may have the same surface form. Count it once.
+                // This may underestimate the score, which only makes skipping less aggressive.
+                if (scoredSurfaces != null && scoredSurfaces.add(surfaceForm(suggestDoc.key)) == false) {
+                    continue;
+                }
+                topScores.offer(suggestDoc.score);
+                if (topScores.size() > terminate) {
+                    topScores.poll();
+                }
             }
             scoreDocMap.clear();
         }
 
+        /**
+         * Suggestions with score less than this can't be in the top "terminate" suggestions collected so far.
+         * Leaves collected so far only.
+         */
+        float minCompetitiveScore() {
+            updateResults();
+            return topScores.size() >= terminate ? topScores.peek() : Float.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * Scores of suggestions collected from now on are multiplied by the boost. Recorded ones are not.
+         */
+        void setBoost(float boost) {
+            this.boost = boost;
+        }
+
+        /**
+         * Start recording suggestions collected from the next leaf.
+         */
+        void startRecording() {
+            recording = new ArrayList<>();
+        }
+
+        List<PrefixSuggestionCache.Collected> stopRecording() {
+            List<PrefixSuggestionCache.Collected> recorded = recording;
+            recording = null;
+            return recorded;
+        }
+
+        /**
+         * Collect suggestions recorded for the leaf.
+         */
+        void replay(LeafReaderContext context, List<PrefixSuggestionCache.Collected> recorded) throws IOException {
+            getLeafCollector(context);
+            for (PrefixSuggestionCache.Collected collected : recorded) {
+                collect(collected.doc, collected.key, collected.context, collected.score);
+            }
+        }
+
         @Override
         public void collect(int docID, CharSequence key, CharSequence context, float score) throws IOException {
+            // Suggestions collected so far are the best ones in the leaf. Keep them.
+            if ((++numCollectCalls & TERMINATION_CHECK_INTERVAL_MASK) == 0 && checkTerminated()) {
+                leafTerminated = true;
+                throw new CollectionTerminatedException();
+            }
+            float boostedScore = score * boost;
             if (scoreDocMap.containsKey(docID)) {
                 FilteredTopDocumentsCollector.SuggestDoc suggestDoc = scoreDocMap.get(docID);
-                suggestDoc.add(key, context, score);
+                suggestDoc.add(key, context, boostedScore);
             } else if (scoreDocMap.size() <= terminate) {
-                if (accept(key)) {
+                // Suggestions are collected in descending order of score within a leaf.
+                // So, the first one of the same surface form is the best one in the leaf.
+                if (accept(key) && firstSurface(key)) {
                     scoreDocMap.put(docID,
                             new FilteredTopDocumentsCollector.SuggestDoc(
-                                    docBase + docID, key, context, score));
+                                    docBase + docID, key, context, boostedScore));
+                    leafCollected++;
+                } else {
+                    leafRejected++;
+                    return;
                 }
             } else {
+                leafTerminated = true;
                 throw new CollectionTerminatedException();
             }
+
+            if (recording != null) {
+                recording.add(new PrefixSuggestionCache.Collected(docID, key, context, score));
+            }
         }
 
         private boolean accept(CharSequence key) {
@@ -265,10 +849,46 @@ public class JapaneseCompletionSuggester extends Suggester<JapaneseCompletionSug
             return true;
         }
 
+        /**
+         * Returns false if a suggestion with the same surface form has been collected from the leaf.
+         * Otherwise, records the surface form and returns true. Duplicates are looked up without allocation.
+         */
+        private boolean firstSurface(CharSequence key) {
+            if (leafSurfaces == null) {
+                return true;
+            }
+
+            int length = surfaceLength(key);
+            if (key instanceof CharsRef) {
+                CharsRef chars = (CharsRef) key;
+                if (leafSurfaces.contains(chars.chars, chars.offset, length)) {
+                    return false;
+                }
+                leafSurfaces.add(Arrays.copyOfRange(chars.chars, chars.offset, chars.offset + length));
+                return true;
+            }
+            return leafSurfaces.add(key.subSequence(0, length));
+        }
+
         @Override
         public TopSuggestDocs get() throws IOException {
             updateResults(); // to empty the last set of collected suggest docs
-            TopSuggestDocs.SuggestScoreDoc[] suggestScoreDocs = pq.getResults();
+            TopSuggestDocs.SuggestScoreDoc[] suggestScoreDocs;
+            if (leafSurfaces != null) {
+                // Leaves are deduplicated individually. Each of them has collected enough distinct surface forms.
+                // Keep the best one across leaves.
+                suggestScoreDocs = pq.getResults();
+                CharArraySet surfaces = new CharArraySet(terminate, false);
+                int numDistinct = 0;
+                for (int i = 0; i < suggestScoreDocs.length && numDistinct < terminate; i++) {
+                    if (surfaces.add(surfaceForm(suggestScoreDocs[i].key))) {
+                        suggestScoreDocs[numDistinct++] = suggestScoreDocs[i];
+                    }
+                }
+                suggestScoreDocs = Arrays.copyOf(suggestScoreDocs, numDistinct);
+            } else {
+                suggestScoreDocs = pq.getResults(terminate);
+            }
             if (suggestScoreDocs.length > 0) {
                 return new TopSuggestDocs(suggestScoreDocs.length, suggestScoreDocs, suggestScoreDocs[0].score);
             } else {
@@ -1,24 +1,215 @@
 package org.elasticsearch.search.suggest.completion;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.unit.Fuzziness;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.ObjectParser;
 import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.analysis.KuromojiSuggestAnalyzer;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.mapper.CompletionFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.search.suggest.SuggestionSearchContext;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class JapaneseCompletionSuggestionBuilder extends CompletionSuggestionBuilder {
     public static final String SUGGESTION_NAME = "japanese_completion";
+    static final ParseField SKIP_DUPLICATES_FIELD = new ParseField("skip_duplicates");
+    static final ParseField TIMEOUT_FIELD = new ParseField("timeout");
+    static final ParseField SESSION_ID_FIELD = new ParseField("session_id");
+    static final ParseField LIGHTWEIGHT_FIELD = new ParseField("lightweight");
+    static final ParseField FIELDS_FIELD = new ParseField("fields");
+
+    /**
+     * Same as completion suggester plus
+     * {
+     *     "skip_duplicates" : BOOLEAN
+     *     "timeout" : TIME_VALUE
+     *     "session_id" : STRING
+     *     "lightweight" : BOOLEAN
+     *     "fields" : { FIELD : FLOAT, ... }
+     * }
+     */
+    private static final ObjectParser<InnerBuilder, Void> PARSER = new ObjectParser<>(SUGGESTION_NAME, null);
+    static {
+        PARSER.declareField((parser, builder, context) -> {
+                if (parser.currentToken() == XContentParser.Token.VALUE_BOOLEAN) {
+                    if (parser.booleanValue()) {
+                        builder.fuzzyOptions = new FuzzyOptions.Builder().build();
+                    }
+                } else {
+                    builder.fuzzyOptions = FuzzyOptions.parse(parser);
+                }
+            },
+            FuzzyOptions.FUZZY_OPTIONS, ObjectParser.ValueType.OBJECT_OR_BOOLEAN);
+        PARSER.declareField((parser, builder, context) -> builder.regexOptions = RegexOptions.parse(parser),
+            RegexOptions.REGEX_OPTIONS, ObjectParser.ValueType.OBJECT);
+        PARSER.declareString(InnerBuilder::field, FIELDNAME_FIELD);
+        PARSER.declareString(InnerBuilder::analyzer, ANALYZER_FIELD);
+        PARSER.declareInt(InnerBuilder::size, SIZE_FIELD);
+        PARSER.declareInt(InnerBuilder::shardSize, SHARDSIZE_FIELD);
+        PARSER.declareField((p, v, c) -> {
+            // Copy the current structure. We will parse, once the mapping is provided
+            XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON);
+            builder.copyCurrentStructure(p);
+            v.contextBytes = builder.bytes();
+            p.skipChildren();
+        }, CONTEXTS_FIELD, ObjectParser.ValueType.OBJECT);
+        PARSER.declareBoolean(InnerBuilder::skipDuplicates, SKIP_DUPLICATES_FIELD);
+        PARSER.declareField((parser, builder, context) ->
+                builder.timeout(TimeValue.parseTimeValue(parser.text(), null, TIMEOUT_FIELD.getPreferredName())),
+            TIMEOUT_FIELD, ObjectParser.ValueType.STRING);
+        PARSER.declareString(InnerBuilder::sessionId, SESSION_ID_FIELD);
+        PARSER.declareBoolean(InnerBuilder::lightweight, LIGHTWEIGHT_FIELD);
+        PARSER.declareField((parser, builder, context) -> {
+                for (Map.Entry<String, Object> entry : parser.map().entrySet()) {
+                    if (entry.getValue() instanceof Number == false) {
+                        throw new ElasticsearchParseException("boost of field [" + entry.getKey() + "] must be a number");
+                    }
+                    builder.addField(entry.getKey(), ((Number) entry.getValue()).floatValue());
+                }
+            },
+            FIELDS_FIELD, ObjectParser.ValueType.OBJECT);
+    }
+
+    private boolean skipDuplicates = false;
+    private TimeValue timeout;
+    private String sessionId;
+    private boolean lightweight = false;
+    private Map<String, Float> fields = new LinkedHashMap<>();
 
     public JapaneseCompletionSuggestionBuilder(String field) {
         super(field);
     }
 
+    /**
+     * internal copy constructor that copies over all class fields except for the field which is
+     * set to the one provided in the first argument
+     */
+    private JapaneseCompletionSuggestionBuilder(String field, JapaneseCompletionSuggestionBuilder in) {
+        super(field);
+        analyzer = in.analyzer;
+        size = in.size;
+        shardSize = in.shardSize;
+        fuzzyOptions = in.fuzzyOptions;
+        regexOptions = in.regexOptions;
+        contextBytes = in.contextBytes;
+        skipDuplicates = in.skipDuplicates;
+        timeout = in.timeout;
+        sessionId = in.sessionId;
+        lightweight = in.lightweight;
+        fields = in.fields;
+    }
+
     public JapaneseCompletionSuggestionBuilder(StreamInput in) throws IOException {
         super(in);
+        skipDuplicates = in.readBoolean();
+        timeout = in.readOptionalWriteable(TimeValue::new);
+        sessionId = in.readOptionalString();
+        lightweight = in.readBoolean();
+        int numFields = in.readVInt();
+        for (int i = 0; i < numFields; i++) {
+            fields.put(in.readString(), in.readFloat());
+        }
+    }
+
+    @Override
+    public void doWriteTo(StreamOutput out) throws IOException {
+        super.doWriteTo(out);
+        out.writeBoolean(skipDuplicates);
+        out.writeOptionalWriteable(timeout);
+        out.writeOptionalString(sessionId);
+        out.writeBoolean(lightweight);
+        out.writeVInt(fields.size());
+        for (Map.Entry<String, Float> entry : fields.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeFloat(entry.getValue());
+        }
+    }
+
+    /**
+     * Whether suggestions with the same surface form as a higher ranked one are skipped.
+     * Collection continues until "size" distinct surface forms are found.
+     */
+    public JapaneseCompletionSuggestionBuilder skipDuplicates(boolean skipDuplicates) {
+        this.skipDuplicates = skipDuplicates;
+        return this;
+    }
+
+    public boolean skipDuplicates() {
+        return skipDuplicates;
+    }
+
+    /**
+     * Time limit to collect suggestions on each shard. Suggestions collected within the limit are returned
+     * and the suggestion name is added to "Japanese-Completion-Timed-Out" response header.
+     */
+    public JapaneseCompletionSuggestionBuilder timeout(TimeValue timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public TimeValue timeout() {
+        return timeout;
+    }
+
+    /**
+     * Identifies an autocomplete session, e.g. a search box of a user.
+     * A suggestion of the session cancels older ones of the same session still running on the same shard.
+     */
+    public JapaneseCompletionSuggestionBuilder sessionId(String sessionId) {
+        this.sessionId = sessionId;
+        return this;
+    }
+
+    public String sessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Whether options carry text and score only. Documents of the options aren't fetched,
+     * so "_index", "_type", "_id", "_source" and contexts aren't returned.
+     */
+    public JapaneseCompletionSuggestionBuilder lightweight(boolean lightweight) {
+        this.lightweight = lightweight;
+        return this;
+    }
+
+    public boolean lightweight() {
+        return lightweight;
+    }
+
+    /**
+     * Collects suggestions from another completion field in the same pass, scores multiplied by the boost.
+     * Options of all the fields are ranked together. Adding the main field sets its boost (1 by default).
+     * Other fields can't have contexts and can't be used with fuzzy or regex.
+     */
+    public JapaneseCompletionSuggestionBuilder addField(String field, float boost) {
+        if (boost <= 0) {
+            throw new IllegalArgumentException("boost of field [" + field + "] must be > 0");
+        }
+        this.fields.put(field, boost);
+        return this;
+    }
+
+    public Map<String, Float> fields() {
+        return Collections.unmodifiableMap(fields);
     }
 
     @Override
@@ -91,9 +282,118 @@ public class JapaneseCompletionSuggestionBuilder extends CompletionSuggestionBui
         return SUGGESTION_NAME;
     }
 
+    private static class InnerBuilder extends JapaneseCompletionSuggestionBuilder {
+        private String field;
+
+        InnerBuilder() {
+            super("_na_");
+        }
+
+        private InnerBuilder field(String field) {
+            this.field = field;
+            return this;
+        }
+    }
+
+    @Override
+    protected XContentBuilder innerToXContent(XContentBuilder builder, Params params) throws IOException {
+        super.innerToXContent(builder, params);
+        if (skipDuplicates) {
+            builder.field(SKIP_DUPLICATES_FIELD.getPreferredName(), skipDuplicates);
+        }
+        if (timeout != null) {
+            builder.field(TIMEOUT_FIELD.getPreferredName(), timeout.getStringRep());
+        }
+        if (sessionId != null) {
+            builder.field(SESSION_ID_FIELD.getPreferredName(), sessionId);
+        }
+        if (lightweight) {
+            builder.field(LIGHTWEIGHT_FIELD.getPreferredName(), lightweight);
+        }
+        if (fields.isEmpty() == false) {
+            builder.field(FIELDS_FIELD.getPreferredName(), fields);
+        }
+        return builder;
+    }
+
+    public static JapaneseCompletionSuggestionBuilder fromXContent(XContentParser parser) throws IOException {
+        InnerBuilder builder = new InnerBuilder();
+        PARSER.parse(parser, builder, null);
+        String field = builder.field;
+        // now we should have field name, check and copy fields over to the suggestion builder we return
+        if (field == null) {
+            throw new ElasticsearchParseException(
+                "the required field option [" + FIELDNAME_FIELD.getPreferredName() + "] is missing");
+        }
+        return new JapaneseCompletionSuggestionBuilder(field, builder);
+    }
+
     @Override
     public SuggestionSearchContext.SuggestionContext build(QueryShardContext context) throws IOException {
         CompletionSuggestionContext suggestionContext = (CompletionSuggestionContext) super.build(context);
-        return new JapaneseCompletionSuggestionContext(suggestionContext, context);
+        checkCompactLabels(field(), suggestionContext.getFieldType().indexAnalyzer(), suggestionContext.getAnalyzer(), context);
+        // Regular expressions match UTF-8 bytes of terms. Kana of compact labels aren't UTF-8.
+        if (suggestionContext.getRegex() != null && isCompactLabels(suggestionContext.getFieldType().indexAnalyzer(), context)) {
+            throw new IllegalArgumentException("Field [" + field() + "] has [compact_labels] and can't be used with [regex]");
+        }
+        float boost = 1;
+        Map<CompletionFieldMapper.CompletionFieldType, Float> otherFields = new LinkedHashMap<>();
+        for (Map.Entry<String, Float> entry : fields.entrySet()) {
+            if (entry.getKey().equals(field())) {
+                boost = entry.getValue();
+                continue;
+            }
+            MappedFieldType fieldType = context.fieldMapper(entry.getKey());
+            if (fieldType instanceof CompletionFieldMapper.CompletionFieldType == false) {
+                throw new IllegalArgumentException("Field [" + entry.getKey() + "] is not a completion suggest field");
+            }
+            CompletionFieldMapper.CompletionFieldType completionFieldType = (CompletionFieldMapper.CompletionFieldType) fieldType;
+            if (completionFieldType.hasContextMappings()) {
+                throw new IllegalArgumentException("Field [" + entry.getKey() + "] has contexts. Only [" + field() + "] can have them");
+            }
+            checkCompactLabels(entry.getKey(), completionFieldType.indexAnalyzer(), completionFieldType.searchAnalyzer(), context);
+            otherFields.put(completionFieldType, entry.getValue());
+        }
+        if (otherFields.isEmpty() == false && (suggestionContext.getFuzzyOptions() != null || suggestionContext.getRegex() != null)) {
+            throw new IllegalArgumentException("[" + FIELDS_FIELD.getPreferredName() + "] can't be used with [fuzzy] or [regex]");
+        }
+        // Timed out suggestions are reported in a response header. Getting the client also keeps their partial results
+        // out of the request cache.
+        ThreadContext threadContext = timeout == null ? null : context.getClient().threadPool().getThreadContext();
+        return new JapaneseCompletionSuggestionContext(suggestionContext, context, skipDuplicates, timeout, threadContext, sessionId,
+                lightweight, boost, otherFields);
+    }
+
+    // Terms indexed with compact labels can't be matched by keystrokes without them, and the other way around.
+    private static void checkCompactLabels(String field, Analyzer indexAnalyzer, Analyzer searchAnalyzer, QueryShardContext context) {
+        if (isCompactLabels(indexAnalyzer, context) != isCompactLabels(searchAnalyzer, context)) {
+            throw new IllegalArgumentException("Field [" + field + "] has index analyzer [" + name(indexAnalyzer)
+                    + "] and search analyzer [" + name(searchAnalyzer) + "] with different [compact_labels]");
+        }
+    }
+
+    private static String name(Analyzer analyzer) {
+        return analyzer instanceof NamedAnalyzer ? ((NamedAnalyzer) analyzer).name() : analyzer.toString();
+    }
+
+    private static boolean isCompactLabels(Analyzer analyzer, QueryShardContext context) {
+        KuromojiSuggestAnalyzer kuromojiSuggestAnalyzer = JapaneseCompletionSuggester.kuromojiSuggestAnalyzer(analyzer, context);
+        return kuromojiSuggestAnalyzer != null && kuromojiSuggestAnalyzer.isCompactLabels();
+    }
+
+    @Override
+    protected boolean doEquals(CompletionSuggestionBuilder other) {
+        JapaneseCompletionSuggestionBuilder that = (JapaneseCompletionSuggestionBuilder) other;
+        return super.doEquals(other) &&
+            skipDuplicates == that.skipDuplicates &&
+            Objects.equals(timeout, that.timeout) &&
+            Objects.equals(sessionId, that.sessionId) &&
+            lightweight == that.lightweight &&
+            fields.equals(that.fields);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(super.doHashCode(), skipDuplicates, timeout, sessionId, lightweight, fields);
     }
 }
@@ -1,15 +1,38 @@
 package org.elasticsearch.search.suggest.completion;
 
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.mapper.CompletionFieldMapper;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.search.suggest.SuggestionSearchContext;
 
+import java.util.Map;
+
 public class JapaneseCompletionSuggestionContext extends SuggestionSearchContext.SuggestionContext {
     private CompletionSuggestionContext delegate;
+    private final boolean skipDuplicates;
+    private final TimeValue timeout;
+    private final ThreadContext threadContext;
+    private final String sessionId;
+    private final boolean lightweight;
+    private final float boost;
+    private final Map<CompletionFieldMapper.CompletionFieldType, Float> otherFields;
 
-    protected JapaneseCompletionSuggestionContext(CompletionSuggestionContext completionSuggestionContext, QueryShardContext shardContext) {
+    protected JapaneseCompletionSuggestionContext(CompletionSuggestionContext completionSuggestionContext, QueryShardContext shardContext,
+                                                  boolean skipDuplicates, TimeValue timeout, ThreadContext threadContext,
+                                                  String sessionId,
+                                                  boolean lightweight, float boost,
+                                                  Map<CompletionFieldMapper.CompletionFieldType, Float> otherFields) {
         super(JapaneseCompletionSuggester.INSTANCE, shardContext);
         this.delegate = completionSuggestionContext;
+        this.skipDuplicates = skipDuplicates;
+        this.timeout = timeout;
+        this.threadContext = threadContext;
+        this.sessionId = sessionId;
+        this.lightweight = lightweight;
+        this.boost = boost;
+        this.otherFields = otherFields;
     }
 
     @Override
@@ -20,4 +43,50 @@ public class JapaneseCompletionSuggestionContext extends SuggestionSearchContext
     public CompletionSuggestionContext getDelegate() {
         return delegate;
     }
+
+    public boolean isSkipDuplicates() {
+        return skipDuplicates;
+    }
+
+    /**
+     * @return time limit to collect suggestions or null if there is no limit
+     */
+    public TimeValue getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return thread context of the node to report a timeout to, or null if there is no limit
+     */
+    public ThreadContext getThreadContext() {
+        return threadContext;
+    }
+
+    /**
+     * @return autocomplete session the suggestion belongs to or null
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return whether options are returned without their documents
+     */
+    public boolean isLightweight() {
+        return lightweight;
+    }
+
+    /**
+     * @return boost of the main field
+     */
+    public float getBoost() {
+        return boost;
+    }
+
+    /**
+     * @return completion fields other than the main one to collect suggestions from, and their boosts
+     */
+    public Map<CompletionFieldMapper.CompletionFieldType, Float> getOtherFields() {
+        return otherFields;
+    }
 }
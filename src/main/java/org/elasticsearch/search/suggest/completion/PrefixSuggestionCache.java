@@ -0,0 +1,117 @@
+package org.elasticsearch.search.suggest.completion;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-segment cache of suggestions collected for short inputs.
+ *
+ * Short inputs match large part of the FST and most of the matches may be rejected by prefix filtering,
+ * while they are the most frequent ones. Suggestions collected from a segment don't change as long as
+ * the segment and its deletions don't change. So, they are cached per segment and replayed to the collector.
+ * The analyzer of the input is part of the key since it can be overridden per request.
+ * Entries are removed when the segment is closed.
+ */
+class PrefixSuggestionCache implements LeafReader.CoreClosedListener {
+    // Maximum number of collected suggestions held in the cache.
+    private static final long MAX_WEIGHT = 100000;
+
+    private final Cache<Key, List<Collected>> cache = CacheBuilder.<Key, List<Collected>>builder()
+            .setMaximumWeight(MAX_WEIGHT)
+            .weigher((key, value) -> value.size() + 1)
+            .build();
+
+    private final Set<Object> registeredCores = ConcurrentHashMap.newKeySet();
+
+    List<Collected> get(LeafReader reader, String field, String input, Analyzer analyzer, int size, boolean skipDuplicates) {
+        return cache.get(new Key(reader, field, input, analyzer, size, skipDuplicates));
+    }
+
+    void put(LeafReader reader, String field, String input, Analyzer analyzer, int size, boolean skipDuplicates,
+             List<Collected> collected) {
+        if (registeredCores.add(reader.getCoreCacheKey())) {
+            reader.addCoreClosedListener(this);
+        }
+        cache.put(new Key(reader, field, input, analyzer, size, skipDuplicates), collected);
+    }
+
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+        registeredCores.remove(ownerCoreCacheKey);
+        List<Key> invalidated = new ArrayList<>();
+        for (Key key : cache.keys()) {
+            if (key.coreKey == ownerCoreCacheKey) {
+                invalidated.add(key);
+            }
+        }
+        invalidated.forEach(cache::invalidate);
+    }
+
+    int count() {
+        return cache.count();
+    }
+
+    /**
+     * Arguments of a {@link org.apache.lucene.search.suggest.document.TopSuggestDocsCollector#collect} call.
+     */
+    static final class Collected {
+        final int doc;
+        final CharSequence key;
+        final CharSequence context;
+        final float score;
+
+        Collected(int doc, CharSequence key, CharSequence context, float score) {
+            this.doc = doc;
+            this.key = key;
+            this.context = context;
+            this.score = score;
+        }
+    }
+
+    private static final class Key {
+        private final Object coreKey;
+        private final Object deletesKey;
+        private final String field;
+        private final String input;
+        private final Analyzer analyzer;
+        private final int size;
+        private final boolean skipDuplicates;
+
+        Key(LeafReader reader, String field, String input, Analyzer analyzer, int size, boolean skipDuplicates) {
+            this.coreKey = reader.getCoreCacheKey();
+            this.deletesKey = reader.getCombinedCoreAndDeletesKey();
+            this.field = field;
+            this.input = input;
+            this.analyzer = analyzer;
+            this.size = size;
+            this.skipDuplicates = skipDuplicates;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return size == key.size &&
+                    skipDuplicates == key.skipDuplicates &&
+                    coreKey == key.coreKey &&
+                    deletesKey == key.deletesKey &&
+                    analyzer == key.analyzer &&
+                    field.equals(key.field) &&
+                    input.equals(key.input);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(deletesKey), field, input, size, skipDuplicates);
+        }
+    }
+}
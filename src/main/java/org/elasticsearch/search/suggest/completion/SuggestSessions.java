@@ -0,0 +1,54 @@
+package org.elasticsearch.search.suggest.completion;
+
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-flight suggestions of autocomplete sessions.
+ *
+ * Clients send a request on every keystroke and an older request becomes useless once a newer one arrives.
+ * A suggestion started for a session and shard cancels the one still running for the same session and shard.
+ */
+class SuggestSessions {
+    private final ConcurrentMap<Tuple<String, ShardId>, Session> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a suggestion for the session on the shard and cancels the previous one if any.
+     * {@link #finish(Session)} must be called when the suggestion is done.
+     */
+    Session start(String sessionId, ShardId shardId) {
+        Session session = new Session(new Tuple<>(sessionId, shardId));
+        Session previous = inFlight.put(session.key, session);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        return session;
+    }
+
+    void finish(Session session) {
+        inFlight.remove(session.key, session);
+    }
+
+    int count() {
+        return inFlight.size();
+    }
+
+    static final class Session {
+        private final Tuple<String, ShardId> key;
+        private volatile boolean cancelled;
+
+        private Session(Tuple<String, ShardId> key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns true if a newer suggestion of the same session has started on the shard.
+         */
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
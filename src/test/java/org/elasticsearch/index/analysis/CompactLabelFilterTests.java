@@ -0,0 +1,118 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene62.Lucene62Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.suggest.document.Completion50PostingsFormat;
+import org.apache.lucene.search.suggest.document.CompletionAnalyzer;
+import org.apache.lucene.search.suggest.document.SuggestField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.test.ESTokenStreamTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.hamcrest.Matchers.contains;
+
+public class CompactLabelFilterTests extends ESTokenStreamTestCase {
+    private static final Logger LOGGER = Loggers.getLogger(CompactLabelFilterTests.class);
+
+    public void testKana() throws IOException {
+        MockTokenizer tokenizer = new MockTokenizer();
+        tokenizer.setReader(new StringReader("すし スシ sushi 寿司"));
+        assertTokenStreamContents(new CompactLabelFilter(tokenizer),
+                new String[] {"\u0119\u0117", "\u0179\u0177", "sushi", "寿司"});
+    }
+
+    public void testEscape() {
+        assertEquals("\u0001\u0100\u0001\u0001a", CompactLabelFilter.encode("\u0100\u0001a"));
+        assertEquals("\u0001\u01bf\u0200", CompactLabelFilter.encode("\u01bf\u0200"));
+    }
+
+    public void testEncodedSizes() {
+        // Two bytes for Kana, one more for escaped characters.
+        assertEquals(7, new BytesRef(CompactLabelFilter.encode("すし屋")).length);
+        assertEquals(3, new BytesRef(CompactLabelFilter.encode("\u0100")).length);
+    }
+
+    public void testAnalyzer() throws IOException {
+        Analyzer analyzer = new KuromojiSuggestAnalyzer.IndexKuromojiSuggestAnalyzer(1, 0, 0, 0, true);
+        assertTrue(((KuromojiSuggestAnalyzer) analyzer).isCompactLabels());
+        TreeSet<BytesRef> terms = new TreeSet<>();
+        collectTerms(analyzer, "すし", terms);
+        assertThat(terms, contains(new BytesRef("susi"), new BytesRef(CompactLabelFilter.encode("すし"))));
+    }
+
+    /**
+     * Compares sizes of completion FSTs (".lkp" files) of Kana entries indexed with and without compact labels.
+     */
+    public void testCompletionFstSize() throws IOException {
+        String[] words = {"すし", "てんぷら", "らーめん", "うどん", "そば", "カレー", "ラーメン", "トンカツ", "おにぎり", "たこやき",
+                "ぎょうざ", "やきとり", "しゃぶしゃぶ", "すきやき", "おこのみやき", "チャーハン", "コロッケ", "ハンバーグ"};
+        List<String> entries = new ArrayList<>();
+        for (String first : words) {
+            for (String second : words) {
+                entries.add(first + second);
+            }
+        }
+
+        long plainSize = completionFstSize(new KuromojiSuggestAnalyzer.IndexKuromojiSuggestAnalyzer(
+                KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS, 0, 0, 0, false), entries);
+        long compactSize = completionFstSize(new KuromojiSuggestAnalyzer.IndexKuromojiSuggestAnalyzer(
+                KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS, 0, 0, 0, true), entries);
+        LOGGER.info("completion FST size for [{}] entries: plain [{}] bytes, compact [{}] bytes", entries.size(), plainSize, compactSize);
+        assertTrue("compact [" + compactSize + "] should be smaller than plain [" + plainSize + "]", compactSize < plainSize);
+    }
+
+    private static void collectTerms(Analyzer analyzer, String input, TreeSet<BytesRef> terms) throws IOException {
+        try (TokenStream stream = analyzer.tokenStream("field", input)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(new BytesRef(termAtt));
+            }
+            stream.end();
+        }
+    }
+
+    private static long completionFstSize(Analyzer analyzer, List<String> entries) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new CompletionAnalyzer(analyzer));
+        config.setUseCompoundFile(false);
+        config.setCodec(new Lucene62Codec() {
+            @Override
+            public PostingsFormat getPostingsFormatForField(String field) {
+                return new Completion50PostingsFormat();
+            }
+        });
+        try (Directory directory = new RAMDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, config)) {
+                for (int i = 0; i < entries.size(); i++) {
+                    Document document = new Document();
+                    document.add(new SuggestField("suggest", entries.get(i), i));
+                    writer.addDocument(document);
+                }
+                writer.forceMerge(1);
+            }
+            long size = 0;
+            for (String file : directory.listAll()) {
+                if (file.endsWith(".lkp")) {
+                    size += directory.fileLength(file);
+                }
+            }
+            return size;
+        }
+    }
+}
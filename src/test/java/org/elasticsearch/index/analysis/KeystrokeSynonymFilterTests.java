@@ -0,0 +1,93 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.elasticsearch.test.ESTokenStreamTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+
+public class KeystrokeSynonymFilterTests extends ESTokenStreamTestCase {
+    private static final List<String> RULES = Arrays.asList(
+            "# comment",
+            "",
+            "disney, ディズニー",
+            "tdl => 東京ディズニーランド");
+
+    public void testSearch() throws IOException {
+        Analyzer analyzer = new KuromojiSuggestAnalyzer.SearchKuromojiSuggestAnalyzer(
+                KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS, 0, 0, 0, false, KeystrokeSynonymMap.build(RULES, false, 512));
+        // Rest of the input follows the alternative.
+        assertThat(tokens(analyzer, "disneyland"), contains("disneyland", "dexizuni-land"));
+        assertThat(tokens(analyzer, "でぃずにー"), contains("dexizuni-", "disney", "でぃずにー"));
+        assertThat(tokens(analyzer, "tdl"), contains("tdl", "toukyoudexizuni-rando"));
+        // One way
+        assertThat(tokens(analyzer, "とうきょうでぃずにーらんど"), not(hasItem("tdl")));
+        // Partial keys don't match.
+        assertThat(tokens(analyzer, "disn"), contains("disn"));
+    }
+
+    public void testIndex() throws IOException {
+        Analyzer analyzer = new KuromojiSuggestAnalyzer.IndexKuromojiSuggestAnalyzer(
+                KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS, 0, 0, 0, false, KeystrokeSynonymMap.build(RULES, true, 512));
+        assertThat(tokens(analyzer, "ディズニーランド"), containsInAnyOrder("dexizuni-rando", "disneyrando", "ディズニーランド"));
+        // All variations of the alternative.
+        assertThat(tokens(analyzer, "tdl"), containsInAnyOrder("tdl", "toukyoudexizuni-rando", "toukixyoudexizuni-rando"));
+        assertThat(tokens(analyzer, "東京"), contains("toukyou", "toukixyou", "東京"));
+    }
+
+    public void testPositions() throws IOException {
+        Analyzer analyzer = new KuromojiSuggestAnalyzer.SearchKuromojiSuggestAnalyzer(
+                KuromojiSuggestTokenizer.DEFAULT_MAX_EXPANSIONS, 0, 0, 0, false, KeystrokeSynonymMap.build(RULES, false, 512));
+        // Alternatives are stacked on the input.
+        List<Integer> positionIncrements = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("field", "tdl")) {
+            PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                positionIncrements.add(posIncAtt.getPositionIncrement());
+            }
+            stream.end();
+        }
+        assertThat(positionIncrements, contains(1, 0));
+        // Reused for the next input.
+        assertThat(tokens(analyzer, "tdl"), contains("tdl", "toukyoudexizuni-rando"));
+    }
+
+    public void testNoRules() throws IOException {
+        assertNull(KeystrokeSynonymMap.build(Collections.emptyList(), true, 512));
+        assertNull(KeystrokeSynonymMap.build(Arrays.asList("# comment", "disney"), true, 512));
+    }
+
+    public void testInvalidRules() {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> KeystrokeSynonymMap.build(Collections.singletonList("a => b => c"), true, 512));
+        assertEquals("Invalid synonym rule [a => b => c]", e.getMessage());
+        e = expectThrows(IllegalArgumentException.class,
+                () -> KeystrokeSynonymMap.build(Collections.singletonList("a, , b"), true, 512));
+        assertEquals("Invalid synonym rule [a, , b]: empty term", e.getMessage());
+    }
+
+    private static List<String> tokens(Analyzer analyzer, String input) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("field", input)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(termAtt.toString());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+}
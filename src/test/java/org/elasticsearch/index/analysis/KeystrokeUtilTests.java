@@ -3,9 +3,15 @@ package org.elasticsearch.index.analysis;
 
 import org.elasticsearch.test.ESTestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 
 public class KeystrokeUtilTests extends ESTestCase {
@@ -23,4 +29,23 @@ public class KeystrokeUtilTests extends ESTestCase {
             assertThat("weight history > 1" + l, ks.getWeightHistory(), hasSize(1));
                 }));
     }
+
+    public void testExceedsExpansions() {
+        int variations = KeystrokeUtil.toKeyStrokes("ジョウショウキリュウ", 512).size();
+        // Exactly filling the budget drops nothing.
+        assertFalse(KeystrokeUtil.exceedsExpansions("ジョウショウキリュウ", variations));
+        assertTrue(KeystrokeUtil.exceedsExpansions("ジョウショウキリュウ", variations - 1));
+        assertFalse(KeystrokeUtil.exceedsExpansions("abc", 1));
+    }
+
+    public void testCompiledMapping() throws IOException {
+        Map<String, List<Keystroke>> mapping = KeystrokeUtil.buildMapping();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KeystrokeUtil.writeMapping(mapping, out);
+        Map<String, List<Keystroke>> compiled = KeystrokeUtil.readMapping(new ByteArrayInputStream(out.toByteArray()));
+
+        assertThat(compiled, equalTo(mapping));
+        assertThat(KeystrokeUtil.KEY_STROKE_MAP, equalTo(mapping));
+    }
 }
@@ -67,6 +67,26 @@ public class KuromojiSuggestAnalysisTests extends ESTestCase {
 
     }
 
+    public void testConfiguredIndexAnalyzer() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.analyzer.kuromoji_suggest_index.type", "kuromoji_suggest_index")
+                .put("index.analysis.analyzer.kuromoji_suggest_index.max_expansions", 2)
+                .put("index.analysis.analyzer.limited.type", "kuromoji_suggest_index")
+                .put("index.analysis.analyzer.limited.max_tokens", 2)
+                .build();
+        TestAnalysis analysis = createTestAnalysis(new Index("test", "_na_"), settings, new JapaneseSuggesterPlugin());
+
+        testTokenization(analysis.indexAnalyzers.get(KuromojiSuggestAnalyzerProvider.INDEX_ANALYZER),
+                "シュークリーム",
+                Arrays.asList("syu-kuri-mu", "shu-kuri-mu", "シュークリーム"),
+                true);
+
+        testTokenization(analysis.indexAnalyzers.get("limited"),
+                "シュークリーム",
+                Arrays.asList("syu-kuri-mu", "シュークリーム"),
+                true);
+    }
+
     private void testTokenization(Analyzer analyzer, String input, List<String> expected) throws IOException {
         testTokenization(analyzer, input, expected, false);
     }
@@ -8,14 +8,19 @@ import org.elasticsearch.test.ESTestCase;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 
 public class KuromojiSuggestTokenizerTests extends ESTestCase {
 
@@ -27,6 +32,77 @@ public class KuromojiSuggestTokenizerTests extends ESTestCase {
         testTokenizationCount(createTokenizer(true, 5, false), "小学校", 6); // 6 -> original + max_expansions=5
     }
 
+    public void testExpansionsPerChar() throws IOException {
+        // Reading of "上昇気流" is "ジョウショウキリュウ"(10 chars)
+        testTokenizationCount(createTokenizer(true, 512, 2, 0, false), "上昇気流", 21); // original + 2 * 10
+        testTokenizationCount(createTokenizer(true, 5, 2, 0, false), "上昇気流", 6); // still capped by max_expansions
+    }
+
+    public void testMaxTokens() throws IOException {
+        testTokenizationCount(createTokenizer(true, 512, 0, 5, false), "上昇気流", 5);
+        testTokenizationCount(createTokenizer(true, 512, 0, 5, true), "上昇気流", 5);
+
+        // Surface form is kept even if it ranks lower than the others.
+        testTokenizationWithWeight(createTokenizer(true, 512, 0, 2, false), "じょじょ",
+                Stream.of(
+                        strokeOf("jojo", 2),
+                        strokeOf("じょじょ", 4)
+                ).collect(Collectors.toSet()));
+        // Edge n-grams too.
+        testTokenizationWithWeight(createTokenizer(true, 512, 0, 2, true), "じょじょ",
+                Stream.of(
+                        strokeOf("j", 2),
+                        strokeOf("じょじょ", 4)
+                ).collect(Collectors.toSet()));
+    }
+
+    public void testNBest() throws IOException {
+        testTokenization(createTokenizer(false, 512, 0, 0, 0, false), "東京都",
+                Arrays.asList("toukyouto", "東京都"));
+        testTokenization(createTokenizer(false, 512, 0, 0, 5000, false), "東京都",
+                Arrays.asList("toukyouto", "higasikyouto", "東京都"));
+
+        // Readings share max_expansions
+        testTokenization(createTokenizer(true, 2, 0, 0, 5000, false), "東京都",
+                Arrays.asList("toukyouto", "higasikyouto", "東京都"));
+    }
+
+    public void testNBestDeadEnds() {
+        // Many paths that don't reach the end come before the one that does.
+        Map<Integer, List<KuromojiSuggestTokenizer.Arc>> arcs = new HashMap<>();
+        List<KuromojiSuggestTokenizer.Arc> first = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            first.add(new KuromojiSuggestTokenizer.Arc(1, "ア", "亜"));
+        }
+        first.add(new KuromojiSuggestTokenizer.Arc(2, "イ", "伊"));
+        arcs.put(0, first);
+
+        KuromojiSuggestTokenizer.Paths paths = new KuromojiSuggestTokenizer.Paths(arcs, 2);
+        paths.walk(0, new StringBuilder(), new StringBuilder());
+        // Dead ends are skipped without using up the limit.
+        assertThat(paths.readings(), contains("イ"));
+
+        // Nothing reaches the end.
+        arcs.remove(0);
+        arcs.put(0, first.subList(0, 20));
+        paths = new KuromojiSuggestTokenizer.Paths(arcs, 2);
+        paths.walk(0, new StringBuilder(), new StringBuilder());
+        assertThat(paths.readings(), hasSize(0));
+    }
+
+    public void testExplicitReading() throws IOException {
+        testTokenization(createTokenizer(false, 512, false), "中田《なかだ》",
+                Arrays.asList("nakada", "中田"));
+        testTokenization(createTokenizer(false, 512, false), "中田《ナカダ》",
+                Arrays.asList("nakada", "中田"));
+
+        // Not a reading
+        testTokenization(createTokenizer(false, 512, false), "中田《》",
+                Arrays.asList("nakata《》", "中田《》"));
+        testTokenization(createTokenizer(false, 512, false), "中田《中田》",
+                Arrays.asList("nakata《nakata》", "中田《中田》"));
+    }
+
     public void testWeight() throws IOException {
         testTokenizationWithWeight(createTokenizer(true, 1, false), "じょじょ",
                 Stream.of(
@@ -47,10 +123,74 @@ public class KuromojiSuggestTokenizerTests extends ESTestCase {
                 ).collect(Collectors.toSet()));
     }
 
+    public void testMemoized() throws IOException {
+        KuromojiSuggestTokenizer tokenizer = new KuromojiSuggestTokenizer(true, 512, true);
+        List<List<Object>> first = readWithWeights(tokenizer, "上昇気流");
+        readWithWeights(tokenizer, "小学校");
+        assertThat(tokenizer.memoizedInputs(), equalTo(2));
+
+        // Replayed with weights.
+        assertThat(readWithWeights(tokenizer, "上昇気流"), equalTo(first));
+        assertThat(tokenizer.memoizedInputs(), equalTo(2));
+
+        // Bounded
+        for (int i = 0; i < 100; i++) {
+            readWithWeights(tokenizer, "駅" + i);
+        }
+        assertThat(tokenizer.memoizedInputs(), lessThanOrEqualTo(32));
+        assertThat(readWithWeights(tokenizer, "上昇気流"), equalTo(first));
+    }
+
+    public void testKuromojiSkipped() throws IOException {
+        KuromojiSuggestTokenizer tokenizer = new KuromojiSuggestTokenizer(true, 512, false);
+        assertKuromojiReset(tokenizer, "上昇気流", true);
+        // Memoized
+        assertKuromojiReset(tokenizer, "上昇気流", false);
+        // Explicit reading
+        assertKuromojiReset(tokenizer, "中田《なかだ》", false);
+        assertKuromojiReset(tokenizer, "小学校", true);
+    }
+
+    private void assertKuromojiReset(KuromojiSuggestTokenizer tokenizer, String input, boolean reset) throws IOException {
+        tokenizer.setReader(new StringReader(input));
+        tokenizer.reset();
+        assertThat(tokenizer.isKuromojiReset(), equalTo(reset));
+        assertTrue(tokenizer.incrementToken());
+        while (tokenizer.incrementToken()) {
+            // Consume
+        }
+        tokenizer.end();
+        tokenizer.close();
+        assertFalse(tokenizer.isKuromojiReset());
+    }
+
+    private List<List<Object>> readWithWeights(Tokenizer tokenizer, String input) throws IOException {
+        tokenizer.setReader(new StringReader(input));
+        tokenizer.reset();
+        List<List<Object>> result = new ArrayList<>();
+        while (tokenizer.incrementToken()) {
+            WeightAttribute weightAtt = tokenizer.getAttribute(WeightAttribute.class);
+            result.add(Arrays.asList(tokenizer.getAttribute(CharTermAttribute.class).toString(), weightAtt.getWeight(),
+                    new ArrayList<>(weightAtt.getWeights())));
+        }
+        tokenizer.end();
+        tokenizer.close();
+        return result;
+    }
+
     private Tokenizer createTokenizer(boolean expand, int maxExpansions, boolean edgeNgram) {
         return new KuromojiSuggestTokenizer(expand, maxExpansions, edgeNgram);
     }
 
+    private Tokenizer createTokenizer(boolean expand, int maxExpansions, int expansionsPerChar, int maxTokens, boolean edgeNgram) {
+        return createTokenizer(expand, maxExpansions, expansionsPerChar, maxTokens, 0, edgeNgram);
+    }
+
+    private Tokenizer createTokenizer(
+            boolean expand, int maxExpansions, int expansionsPerChar, int maxTokens, int nBestCost, boolean edgeNgram) {
+        return new KuromojiSuggestTokenizer(expand, maxExpansions, expansionsPerChar, maxTokens, nBestCost, edgeNgram);
+    }
+
     private void testTokenizationCount(Tokenizer tokenizer, String input, int expected) throws IOException {
         tokenizer.setReader(new StringReader(input));
         List<Keystroke> result = readStream(tokenizer);
@@ -58,6 +198,13 @@ public class KuromojiSuggestTokenizerTests extends ESTestCase {
         tokenizer.close();
     }
 
+    private void testTokenization(Tokenizer tokenizer, String input, List<String> expected) throws IOException {
+        tokenizer.setReader(new StringReader(input));
+        List<String> result = readStream(tokenizer).stream().map(ks -> ks.stroke).collect(Collectors.toList());
+        assertThat(result, equalTo(expected));
+        tokenizer.close();
+    }
+
     private void testTokenizationWithWeight(Tokenizer tokenizer, String input, Set<Keystroke> expected) throws IOException {
         tokenizer.setReader(new StringReader(input));
         List<Keystroke> result = readStream(tokenizer);
@@ -0,0 +1,117 @@
+package org.elasticsearch.index.query;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.plugin.JapaneseSuggesterPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.test.ESIntegTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+
+public class JapanesePrefixQueryTests extends ESIntegTestCase {
+    private static final String INDEX = "prefix_query_test";
+    private static final String TYPE = "type";
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return Arrays.asList(JapaneseSuggesterPlugin.class);
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
+        return Arrays.asList(JapaneseSuggesterPlugin.class);
+    }
+
+    private void createTestIndex() throws IOException {
+        client().admin().indices().prepareCreate(INDEX)
+                .addMapping(TYPE, jsonBuilder()
+                            .startObject()
+                                .startObject("properties")
+                                    .startObject("title")
+                                        .field("type", "text")
+                                        .field("analyzer", "kuromoji_suggest_index")
+                                    .endObject()
+                                    .startObject("category")
+                                        .field("type", "keyword")
+                                    .endObject()
+                                .endObject()
+                            .endObject())
+                .execute().actionGet();
+
+        feedDocument("1", "東京", "place");
+        feedDocument("2", "豆腐", "food");
+        feedDocument("3", "大阪", "place");
+        feedDocument("4", "中田《なかだ》", "name");
+    }
+
+    public void testPrefix() throws IOException {
+        createTestIndex();
+
+        assertHits(new JapanesePrefixQueryBuilder("title", "とう"), "1", "2");
+        assertHits(new JapanesePrefixQueryBuilder("title", "tou"), "1", "2");
+        assertHits(new JapanesePrefixQueryBuilder("title", "とうk"), "1");
+        assertHits(new JapanesePrefixQueryBuilder("title", "とうf"), "2");
+        assertHits(new JapanesePrefixQueryBuilder("title", "東"), "1");
+        assertHits(new JapanesePrefixQueryBuilder("title", "ｵｵｻ"), "3");
+        assertHits(new JapanesePrefixQueryBuilder("title", "なかだ"), "4");
+        assertHits(new JapanesePrefixQueryBuilder("title", "東京"), "1");
+        assertHits(new JapanesePrefixQueryBuilder("title", "中田"), "4");
+        // Same reading, different Kanji.
+        assertHits(new JapanesePrefixQueryBuilder("title", "党"));
+        assertHits(new JapanesePrefixQueryBuilder("title", "党きょ"));
+    }
+
+    public void testFilter() throws IOException {
+        createTestIndex();
+
+        assertHits(QueryBuilders.boolQuery()
+                .must(new JapanesePrefixQueryBuilder("title", "とう"))
+                .filter(QueryBuilders.termQuery("category", "place")), "1");
+        assertHits(QueryBuilders.boolQuery()
+                .filter(new JapanesePrefixQueryBuilder("title", "o"))
+                .filter(QueryBuilders.termQuery("category", "place")), "3");
+    }
+
+    public void testParse() throws IOException {
+        createTestIndex();
+
+        assertHits(QueryBuilders.wrapperQuery("{\"japanese_prefix\": {\"title\": \"とうk\"}}"), "1");
+        assertHits(QueryBuilders.wrapperQuery(
+                "{\"japanese_prefix\": {\"title\": {\"value\": \"とう\", \"analyzer\": \"kuromoji_suggest_search\", \"boost\": 2}}}"),
+                "1", "2");
+    }
+
+    public void testUnknownAnalyzer() throws IOException {
+        createTestIndex();
+
+        Exception e = expectThrows(Exception.class, () -> client().prepareSearch(INDEX)
+                .setQuery(new JapanesePrefixQueryBuilder("title", "とう").analyzer("unknown")).get());
+        assertThat(e.toString() + (e.getCause() == null ? "" : e.getCause().toString()), containsString("unknown"));
+    }
+
+    private void assertHits(QueryBuilder query, String... expected) {
+        SearchResponse response = client().prepareSearch(INDEX).setQuery(query).get();
+        List<String> ids = Arrays.stream(response.getHits().getHits()).map(SearchHit::getId).collect(Collectors.toList());
+        if (expected.length == 0) {
+            assertThat(ids, empty());
+        } else {
+            assertThat(ids, containsInAnyOrder(expected));
+        }
+    }
+
+    private void feedDocument(String id, String title, String category) throws IOException {
+        client().prepareIndex(INDEX, TYPE, id)
+                .setSource(jsonBuilder().startObject().field("title", title).field("category", category).endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).execute().actionGet();
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.ingest;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class KuromojiSuggestProcessorTests extends ESTestCase {
+
+    public void testReading() throws Exception {
+        IngestDocument document = createDocument("suggest", "東京駅");
+        createProcessor("suggest").execute(document);
+        assertThat(document.getFieldValue("suggest", String.class), equalTo("東京駅《トウキョウエキ》"));
+    }
+
+    public void testExplicitReadingIsKept() throws Exception {
+        IngestDocument document = createDocument("suggest", "中田《なかだ》");
+        createProcessor("suggest").execute(document);
+        assertThat(document.getFieldValue("suggest", String.class), equalTo("中田《なかだ》"));
+    }
+
+    public void testNonKanaReading() throws Exception {
+        // Reading can't be written in Kana. Leave it to data nodes.
+        IngestDocument document = createDocument("suggest", "2015年");
+        createProcessor("suggest").execute(document);
+        assertThat(document.getFieldValue("suggest", String.class), equalTo("2015年"));
+    }
+
+    public void testList() throws Exception {
+        IngestDocument document = createDocument("suggest", Arrays.asList("東京", "豆腐"));
+        createProcessor("suggest").execute(document);
+        assertThat(document.getFieldValue("suggest", List.class), equalTo(Arrays.asList("東京《トウキョウ》", "豆腐《トウフ》")));
+    }
+
+    public void testCompletionObject() throws Exception {
+        Map<String, Object> completion = new HashMap<>();
+        completion.put("input", Arrays.asList("東京", "豆腐"));
+        completion.put("weight", 10);
+        IngestDocument document = createDocument("suggest", completion);
+        createProcessor("suggest").execute(document);
+        assertThat(document.getFieldValue("suggest.input", List.class), equalTo(Arrays.asList("東京《トウキョウ》", "豆腐《トウフ》")));
+        assertThat(document.getFieldValue("suggest.weight", Integer.class), equalTo(10));
+    }
+
+    public void testListOfCompletionObjects() throws Exception {
+        Map<String, Object> completion = new HashMap<>();
+        completion.put("input", "東京");
+        completion.put("weight", 10);
+        IngestDocument document = createDocument("suggest", Arrays.asList(completion, "豆腐"));
+        createProcessor("suggest").execute(document);
+        List<?> values = document.getFieldValue("suggest", List.class);
+        assertThat(((Map<?, ?>) values.get(0)).get("input"), equalTo("東京《トウキョウ》"));
+        assertThat(((Map<?, ?>) values.get(0)).get("weight"), equalTo(10));
+        assertThat(values.get(1), equalTo("豆腐《トウフ》"));
+        // Source is left as is when written to another field.
+        assertThat(completion.get("input"), equalTo("東京"));
+    }
+
+    public void testMaxInputLength() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "suggest");
+        config.put("max_input_length", 9);
+        KuromojiSuggestProcessor processor = new KuromojiSuggestProcessor.Factory().create(null, null, config);
+
+        // "東京《トウキョウ》" is 9 characters and fits.
+        IngestDocument document = createDocument("suggest", Arrays.asList("東京", "東京駅"));
+        processor.execute(document);
+        assertThat(document.getFieldValue("suggest", List.class), equalTo(Arrays.asList("東京《トウキョウ》", "東京駅")));
+    }
+
+    public void testMissingField() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "suggest");
+        config.put("ignore_missing", true);
+        KuromojiSuggestProcessor processor = new KuromojiSuggestProcessor.Factory().create(null, null, config);
+
+        IngestDocument document = createDocument("other", "東京");
+        processor.execute(document);
+        assertThat(document.getFieldValue("suggest", String.class, true), nullValue());
+
+        expectThrows(IllegalArgumentException.class, () -> createProcessor("suggest").execute(document));
+    }
+
+    public void testInvalidConfig() {
+        expectThrows(ElasticsearchParseException.class,
+                () -> new KuromojiSuggestProcessor.Factory().create(null, null, new HashMap<>()));
+
+        Map<String, Object> maxInputLength = new HashMap<>();
+        maxInputLength.put("field", "suggest");
+        maxInputLength.put("max_input_length", 0);
+        expectThrows(ElasticsearchParseException.class,
+                () -> new KuromojiSuggestProcessor.Factory().create(null, null, maxInputLength));
+    }
+
+    private KuromojiSuggestProcessor createProcessor(String field) throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", field);
+        KuromojiSuggestProcessor processor = new KuromojiSuggestProcessor.Factory().create(null, null, config);
+        assertThat(processor.getField(), equalTo(field));
+        assertThat(processor.getTargetField(), equalTo(field));
+        return processor;
+    }
+
+    private IngestDocument createDocument(String field, Object value) {
+        Map<String, Object> source = new HashMap<>();
+        source.put(field, value);
+        return new IngestDocument("index", "type", "id", null, null, null, null, source);
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch.search.suggest.completion;
+
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class InFlightSuggestionsTests extends ESTestCase {
+
+    public void testCoalesce() throws Exception {
+        InFlightSuggestions inFlightSuggestions = new InFlightSuggestions();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        AtomicReference<CompletionSuggestion> leaderResult = new AtomicReference<>();
+        Thread leader = new Thread(() -> {
+            try {
+                leaderResult.set(inFlightSuggestions.execute(key("とう"), "leader", () -> {
+                    executions.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    return suggestion("leader", "東京");
+                }));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        leader.start();
+        started.await();
+
+        AtomicReference<CompletionSuggestion> followerResult = new AtomicReference<>();
+        Thread follower = new Thread(() -> {
+            try {
+                followerResult.set(inFlightSuggestions.execute(key("とう"), "follower", () -> {
+                    executions.incrementAndGet();
+                    return suggestion("follower", "豆腐");
+                }));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        follower.start();
+        assertBusy(() -> assertThat(follower.getState(), equalTo(Thread.State.WAITING)));
+
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertThat(executions.get(), equalTo(1));
+        assertThat(followerResult.get().getName(), equalTo("follower"));
+        assertThat(followerResult.get().getOptions().get(0).getText().string(), equalTo("東京"));
+        assertThat(followerResult.get().getOptions().get(0), not(sameInstance(leaderResult.get().getOptions().get(0))));
+        assertThat(inFlightSuggestions.count(), equalTo(0));
+
+        // Done. Not shared anymore.
+        CompletionSuggestion result = inFlightSuggestions.execute(key("とう"), "next", () -> suggestion("next", "豆腐"));
+        assertThat(result.getOptions().get(0).getText().string(), equalTo("豆腐"));
+    }
+
+    public void testFailure() {
+        InFlightSuggestions inFlightSuggestions = new InFlightSuggestions();
+        expectThrows(IOException.class, () -> inFlightSuggestions.execute(key("とう"), "failure", () -> {
+            throw new IOException("failure");
+        }));
+        assertThat(inFlightSuggestions.count(), equalTo(0));
+    }
+
+    private static InFlightSuggestions.Key key(String text) {
+        return new InFlightSuggestions.Key(null, "suggest", Collections.emptyMap(), text, null, 5, null, null, Collections.emptyMap(),
+                false);
+    }
+
+    private static CompletionSuggestion suggestion(String name, String text) {
+        CompletionSuggestion suggestion = new CompletionSuggestion(name, 5);
+        CompletionSuggestion.Entry entry = new CompletionSuggestion.Entry(new Text("とう"), 0, 2);
+        entry.addOption(new CompletionSuggestion.Entry.Option(0, new Text(text), 1, Collections.emptyMap()));
+        suggestion.addTerm(entry);
+        return suggestion;
+    }
+}
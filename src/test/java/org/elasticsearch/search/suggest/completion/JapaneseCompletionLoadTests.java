@@ -0,0 +1,326 @@
+package org.elasticsearch.search.suggest.completion;
+
+import com.carrotsearch.randomizedtesting.annotations.TimeoutSuite;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ja.JapaneseTokenizer;
+import org.apache.lucene.analysis.ja.tokenattributes.ReadingAttribute;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TimeUnits;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.analysis.KuromojiSuggestAnalyzer;
+import org.elasticsearch.monitor.jvm.JvmStats;
+import org.elasticsearch.plugin.JapaneseSuggesterPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.suggest.SuggestBuilder;
+import org.elasticsearch.test.ESIntegTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * Replays typing sessions against a local cluster and reports throughput, latency percentiles and JVM figures.
+ * A session sends a suggestion per keystroke while a user types an entry of the corpus in Kana, in Romaji
+ * or in Kana converted to Kanji word by word, and stops at a random point as if a suggestion was picked.
+ * Nodes and the client share this JVM with assertions, a mock transport and randomized settings. The figures
+ * compare changes to the plugin, not clusters.
+ *
+ * Skipped unless "tests.load" is set:
+ * <pre>
+ * gradle test -Dtests.class=org.elasticsearch.search.suggest.completion.JapaneseCompletionLoadTests -Dtests.load=true
+ * </pre>
+ * Options:
+ * <ul>
+ *     <li>tests.load.corpus: file with an entry per line. Synthetic entries are generated if not set.</li>
+ *     <li>tests.load.docs: number of synthetic entries (default 100000)</li>
+ *     <li>tests.load.sessions: number of typing sessions (default 1000)</li>
+ *     <li>tests.load.concurrency: number of sessions typed concurrently (default 8)</li>
+ *     <li>tests.load.nodes: number of data nodes (default 1)</li>
+ *     <li>tests.load.shards: number of shards (default 1)</li>
+ * </ul>
+ */
+@LuceneTestCase.SuppressCodecs("*") // requires custom completion format
+@TimeoutSuite(millis = 2 * TimeUnits.HOUR)
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE, numDataNodes = 1, numClientNodes = 0,
+        supportsDedicatedMasters = false, transportClientRatio = 0)
+public class JapaneseCompletionLoadTests extends ESIntegTestCase {
+    private static final String INDEX = "load_test";
+    private static final String TYPE = "type";
+    private static final String FIELD = "suggest";
+
+    // Words synthetic entries are made of.
+    private static final String[] WORDS = {
+            "東京", "京都", "大阪", "名古屋", "横浜", "神戸", "北海道", "沖縄", "日本", "駅", "空港", "銀行", "大学", "病院",
+            "公園", "天気", "予報", "新聞", "映画", "音楽", "会社", "学校", "図書館", "料理", "旅行", "野球", "電車", "時刻表",
+            "地図", "経済", "株価", "温泉", "寿司", "ラーメン", "カレー", "ホテル", "レストラン", "ニュース", "スマホ", "料金",
+            "比較", "求人", "口コミ", "営業時間", "ランキング", "おすすめ", "安い", "近く"
+    };
+
+    // Produces the most likely keystrokes only.
+    private static final Analyzer ROMAJI_ANALYZER = new KuromojiSuggestAnalyzer.IndexKuromojiSuggestAnalyzer(1, 0, 0, 0);
+
+    private enum Mode {
+        KANA, ROMAJI, CONVERSION
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return Arrays.asList(JapaneseSuggesterPlugin.class);
+    }
+
+    @Override
+    protected int numberOfShards() {
+        return Integer.getInteger("tests.load.shards", 1);
+    }
+
+    @Override
+    protected int numberOfReplicas() {
+        return 0;
+    }
+
+    public void testTypingSessions() throws Exception {
+        assumeTrue("load test is run with -Dtests.load=true", Boolean.getBoolean("tests.load"));
+        int numSessions = Integer.getInteger("tests.load.sessions", 1000);
+        int concurrency = Integer.getInteger("tests.load.concurrency", 8);
+        internalCluster().ensureAtLeastNumDataNodes(Integer.getInteger("tests.load.nodes", 1));
+
+        List<String> corpus = corpus();
+        long start = System.nanoTime();
+        index(corpus);
+        logger.info("indexed [{}] entries in [{}]", corpus.size(), TimeValue.timeValueNanos(System.nanoTime() - start));
+
+        List<List<String>> sessions = new ArrayList<>(numSessions);
+        for (int i = 0; i < numSessions; i++) {
+            sessions.add(typingSession(randomFrom(corpus), randomFrom(Mode.values())));
+        }
+        int numRequests = sessions.stream().mapToInt(List::size).sum();
+
+        JvmStats jvmBefore = jvmStats();
+        long[] latencies = new long[numRequests];
+        AtomicInteger numCompleted = new AtomicInteger();
+        AtomicLong numFailed = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, EsExecutors.daemonThreadFactory("load_test"));
+        start = System.nanoTime();
+        try {
+            for (int i = 0; i < sessions.size(); i++) {
+                String sessionId = "session-" + i;
+                List<String> inputs = sessions.get(i);
+                executor.execute(() -> {
+                    for (String input : inputs) {
+                        JapaneseCompletionSuggestionBuilder builder =
+                                new JapaneseCompletionSuggestionBuilder(FIELD).prefix(input).sessionId(sessionId);
+                        long requestStart = System.nanoTime();
+                        try {
+                            client().prepareSearch(INDEX).setSize(0)
+                                    .suggest(new SuggestBuilder().addSuggestion("suggestion", builder)).get();
+                            latencies[numCompleted.getAndIncrement()] = System.nanoTime() - requestStart;
+                        } catch (Exception e) {
+                            numFailed.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.HOURS));
+        }
+        long elapsed = System.nanoTime() - start;
+
+        report(numSessions, concurrency, numCompleted.get(), numFailed.get(), elapsed,
+                Arrays.copyOf(latencies, numCompleted.get()), jvmBefore, jvmStats());
+        assertThat(numCompleted.get(), greaterThan(0));
+    }
+
+    private List<String> corpus() throws IOException {
+        String path = System.getProperty("tests.load.corpus");
+        if (path != null) {
+            return Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8).stream()
+                    .map(String::trim)
+                    .filter(line -> line.isEmpty() == false)
+                    .collect(Collectors.toList());
+        }
+
+        int numDocs = Integer.getInteger("tests.load.docs", 100000);
+        List<String> corpus = new ArrayList<>(numDocs);
+        for (int i = 0; i < numDocs; i++) {
+            StringBuilder entry = new StringBuilder();
+            int numWords = randomIntBetween(1, 3);
+            for (int j = 0; j < numWords; j++) {
+                entry.append(randomFrom(WORDS));
+            }
+            corpus.add(entry.toString());
+        }
+        return corpus;
+    }
+
+    private void index(List<String> corpus) throws IOException {
+        client().admin().indices().prepareCreate(INDEX)
+                .addMapping(TYPE, jsonBuilder()
+                            .startObject()
+                                .startObject("properties")
+                                    .startObject(FIELD)
+                                        .field("type", "completion")
+                                        .field("analyzer", "kuromoji_suggest_index")
+                                        .field("search_analyzer", "kuromoji_suggest_search")
+                                    .endObject()
+                                .endObject()
+                            .endObject())
+                .get();
+
+        for (int i = 0; i < corpus.size(); i += 1000) {
+            BulkRequestBuilder bulk = client().prepareBulk();
+            for (String entry : corpus.subList(i, Math.min(i + 1000, corpus.size()))) {
+                bulk.add(client().prepareIndex(INDEX, TYPE).setSource(jsonBuilder()
+                        .startObject()
+                            .startObject(FIELD)
+                                .field("input", entry)
+                                .field("weight", randomIntBetween(1, 10000))
+                            .endObject()
+                        .endObject()));
+            }
+            BulkResponse response = bulk.get();
+            assertFalse(response.buildFailureMessage(), response.hasFailures());
+        }
+        refresh(INDEX);
+    }
+
+    /**
+     * Inputs sent while typing the entry, one per keystroke.
+     */
+    private List<String> typingSession(String entry, Mode mode) throws IOException {
+        List<String[]> words = words(entry);
+        StringBuilder reading = new StringBuilder();
+        for (String[] word : words) {
+            reading.append(word[1]);
+        }
+
+        List<String> inputs = new ArrayList<>();
+        switch (mode) {
+            case KANA:
+                String kana = toHiragana(reading);
+                for (int i = 1; i <= kana.length(); i++) {
+                    inputs.add(kana.substring(0, i));
+                }
+                break;
+            case ROMAJI:
+                String romaji = romaji(entry, reading.toString());
+                for (int i = 1; i <= romaji.length(); i++) {
+                    inputs.add(romaji.substring(0, i));
+                }
+                break;
+            case CONVERSION:
+                // Type a word in Kana and convert it before the next one.
+                StringBuilder converted = new StringBuilder();
+                for (String[] word : words) {
+                    String wordKana = toHiragana(word[1]);
+                    for (int i = 1; i <= wordKana.length(); i++) {
+                        inputs.add(converted + wordKana.substring(0, i));
+                    }
+                    converted.append(word[0]);
+                    inputs.add(converted.toString());
+                }
+                break;
+            default:
+                throw new AssertionError(mode);
+        }
+        // Users stop typing once they find what they want.
+        return inputs.subList(0, randomIntBetween(1, inputs.size()));
+    }
+
+    /**
+     * Surface forms and readings of words in the entry.
+     */
+    private static List<String[]> words(String entry) throws IOException {
+        List<String[]> words = new ArrayList<>();
+        try (JapaneseTokenizer tokenizer = new JapaneseTokenizer(null, false, JapaneseTokenizer.Mode.NORMAL)) {
+            CharTermAttribute termAtt = tokenizer.addAttribute(CharTermAttribute.class);
+            ReadingAttribute readingAtt = tokenizer.addAttribute(ReadingAttribute.class);
+            tokenizer.setReader(new StringReader(entry));
+            tokenizer.reset();
+            while (tokenizer.incrementToken()) {
+                String surfaceForm = termAtt.toString();
+                String reading = readingAtt.getReading();
+                words.add(new String[] {surfaceForm, reading == null ? surfaceForm : reading});
+            }
+            tokenizer.end();
+        }
+        return words;
+    }
+
+    private static String romaji(String entry, String reading) throws IOException {
+        try (TokenStream stream = ROMAJI_ANALYZER.tokenStream(FIELD, entry + "《" + reading + "》")) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            assertTrue(stream.incrementToken());
+            String romaji = termAtt.toString();
+            stream.end();
+            return romaji;
+        }
+    }
+
+    private static String toHiragana(CharSequence katakana) {
+        StringBuilder sb = new StringBuilder(katakana.length());
+        for (int i = 0; i < katakana.length(); i++) {
+            char c = katakana.charAt(i);
+            sb.append(c >= 'ァ' && c <= 'ヶ' ? (char) (c - 'ァ' + 'ぁ') : c);
+        }
+        return sb.toString();
+    }
+
+    private JvmStats jvmStats() {
+        // Nodes of the test cluster share the JVM. Any of them will do.
+        return client().admin().cluster().prepareNodesStats().setJvm(true).get().getNodes().get(0).getJvm();
+    }
+
+    private void report(int numSessions, int concurrency, int numCompleted, long numFailed, long elapsed, long[] latencies,
+                        JvmStats jvmBefore, JvmStats jvmAfter) {
+        Arrays.sort(latencies);
+        logger.info("sessions [{}], concurrency [{}], requests [{}], failed [{}], took [{}], throughput [{}] requests/s",
+                numSessions, concurrency, numCompleted, numFailed, TimeValue.timeValueNanos(elapsed),
+                String.format(Locale.ROOT, "%.1f", numCompleted * 1e9 / elapsed));
+        logger.info("latency p50 [{}], p90 [{}], p99 [{}], p99.9 [{}], max [{}]",
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), percentile(latencies, 1.0));
+        logger.info("heap used [{}] of [{}]", jvmAfter.getMem().getHeapUsed(), jvmAfter.getMem().getHeapMax());
+        for (JvmStats.GarbageCollector collector : jvmAfter.getGc()) {
+            long count = collector.getCollectionCount();
+            long millis = collector.getCollectionTime().millis();
+            for (JvmStats.GarbageCollector collectorBefore : jvmBefore.getGc()) {
+                if (collectorBefore.getName().equals(collector.getName())) {
+                    count -= collectorBefore.getCollectionCount();
+                    millis -= collectorBefore.getCollectionTime().millis();
+                }
+            }
+            logger.info("gc [{}] collections [{}], took [{}]", collector.getName(), count, TimeValue.timeValueMillis(millis));
+        }
+    }
+
+    private static TimeValue percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return TimeValue.timeValueNanos(0);
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeValue.timeValueNanos(sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+    }
+}
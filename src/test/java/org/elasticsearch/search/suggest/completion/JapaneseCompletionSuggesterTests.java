@@ -1,9 +1,21 @@
 package org.elasticsearch.search.suggest.completion;
 
 import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.Fuzziness;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.plugin.JapaneseSuggesterPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.search.suggest.Suggest;
@@ -16,10 +28,17 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
 
 @LuceneTestCase.SuppressCodecs("*") // requires custom completion format
 public class JapaneseCompletionSuggesterTests extends ESIntegTestCase {
@@ -98,8 +117,482 @@ public class JapaneseCompletionSuggesterTests extends ESIntegTestCase {
         assertSuggestResult(index, field, "a", 1, "ABCDE");
     }
 
+    public void testExplicitReading() throws IOException {
+        String index = "explicit_reading_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        feedDocument(index, type, field, "中田《なかだ》");
+
+        assertSuggestResult(index, field, "なかだ", "中田");
+        assertSuggestResult(index, field, "nakad", "中田");
+        assertSuggestResult(index, field, "中", "中田");
+        assertSuggestResult(index, field, "なかた", (String[]) null);
+    }
+
+    public void testMultipleSegments() throws IOException {
+        String index = "segments_test";
+        String type = "type";
+        String field = "suggest";
+
+        // A shard to have all of the segments.
+        createTestIndex(index, type, field, Settings.builder().put("index.number_of_shards", 1).build());
+
+        // Each document is in its own segment since they are refreshed immediately.
+        feedDocument(index, type, field, "東京1", 1);
+        feedDocument(index, type, field, "東京2", 5);
+        feedDocument(index, type, field, "東京3", 3);
+        feedDocument(index, type, field, "東京4", 10);
+        feedDocument(index, type, field, "東京5", 2);
+
+        // Segments are collected in order of max weight. Ones of lower max weight than collected suggestions are skipped.
+        long skipped = JapaneseCompletionSuggester.INSTANCE.skippedLeaves();
+        assertSuggestResult(index, field, "とうk", 2, "東京4", "東京2");
+        assertThat(JapaneseCompletionSuggester.INSTANCE.skippedLeaves() - skipped, equalTo(3L));
+        skipped = JapaneseCompletionSuggester.INSTANCE.skippedLeaves();
+        assertSuggestResult(index, field, "東京", 3, "東京4", "東京2", "東京3");
+        assertThat(JapaneseCompletionSuggester.INSTANCE.skippedLeaves() - skipped, equalTo(2L));
+        assertSuggestResult(index, field, "東京1", 2, "東京1");
+    }
+
+    public void testFuzzyOnMultipleSegments() throws IOException {
+        String index = "fuzzy_segments_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        // Fuzzy queries boost scores by the length of exact prefix, so they go over max weight of the segment.
+        // "特許" (tokkyo) scores 3 * 5 while "東京" (toukyou) scores 5 * 2 though the latter's segment has the larger max weight.
+        feedDocument(index, type, field, "東京", 5);
+        feedDocument(index, type, field, "特許", 3);
+
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder(field).prefix("tokkyo", Fuzziness.ONE).size(1), "特許");
+    }
+
+    public void testKanjiPrefixOnMultipleSegments() throws IOException {
+        String index = "kanji_segments_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field, Settings.builder().put("index.number_of_shards", 1).build());
+
+        feedDocument(index, type, field, "東京");
+        feedDocument(index, type, field, "大阪");
+        feedDocument(index, type, field, "Ａ型");
+
+        // Segments without a term starting with the Kanji prefix aren't collected.
+        long pruned = JapaneseCompletionSuggester.INSTANCE.prunedLeaves();
+        assertSuggestResult(index, field, "東", "東京");
+        assertThat(JapaneseCompletionSuggester.INSTANCE.prunedLeaves() - pruned, equalTo(2L));
+        assertSuggestResult(index, field, "大阪", "大阪");
+        assertSuggestResult(index, field, "Ａ型", "Ａ型");
+        pruned = JapaneseCompletionSuggester.INSTANCE.prunedLeaves();
+        assertSuggestResult(index, field, "京", (String[]) null);
+        assertThat(JapaneseCompletionSuggester.INSTANCE.prunedLeaves() - pruned, equalTo(3L));
+    }
+
+    public void testKanjiPrefixOnOtherAnalyzers() throws IOException {
+        String index = "other_analyzers_test";
+        String type = "type";
+
+        client().admin().indices().prepareCreate(index).addMapping(type, jsonBuilder()
+                .startObject()
+                    .startObject("properties")
+                        .startObject("suggest")
+                            .field("type", "completion")
+                            .field("analyzer", "kuromoji_suggest_index")
+                            .field("search_analyzer", "kuromoji_suggest_search")
+                        .endObject()
+                        .startObject("standard")
+                            .field("type", "completion")
+                            .field("analyzer", "standard")
+                        .endObject()
+                    .endObject()
+                .endObject()).get();
+
+        // "standard" indexes "東\u001F京", which doesn't start with the surface form. Suggestions are post-filtered.
+        feedDocument(index, type, "standard", "東京", 1);
+        feedDocument(index, type, "suggest", "東京都", 1);
+
+        assertSuggestResult(index, "standard", "東京", "東京");
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder("suggest").prefix("東京")
+                .addField("standard", 1), "東京", "東京都");
+    }
+
+    public void testCompactLabels() throws IOException {
+        String index = "compact_labels_test";
+        String type = "type";
+        String field = "suggest";
+
+        client().admin().indices().prepareCreate(index)
+                .setSettings(Settings.builder()
+                        .put("index.analysis.analyzer.compact_index.type", "kuromoji_suggest_index")
+                        .put("index.analysis.analyzer.compact_index.compact_labels", true)
+                        .put("index.analysis.analyzer.compact_search.type", "kuromoji_suggest_search")
+                        .put("index.analysis.analyzer.compact_search.compact_labels", true))
+                .addMapping(type, jsonBuilder()
+                            .startObject()
+                                .startObject("properties")
+                                    .startObject(field)
+                                        .field("type", "completion")
+                                        .field("analyzer", "compact_index")
+                                        .field("search_analyzer", "compact_search")
+                                    .endObject()
+                                    .startObject("mismatch")
+                                        .field("type", "completion")
+                                        .field("analyzer", "compact_index")
+                                        .field("search_analyzer", "kuromoji_suggest_search")
+                                    .endObject()
+                                .endObject()
+                            .endObject())
+                .execute().actionGet();
+
+        feedDocument(index, type, field, "東京", 3);
+        feedDocument(index, type, field, "とうふ", 2);
+        feedDocument(index, type, field, "トウモロコシ", 1);
+
+        assertSuggestResult(index, field, "とう", "東京", "とうふ", "トウモロコシ");
+        assertSuggestResult(index, field, "tou", "東京", "とうふ", "トウモロコシ");
+        assertSuggestResult(index, field, "とうふ", "とうふ");
+        assertSuggestResult(index, field, "トウモ", "トウモロコシ");
+        assertSuggestResult(index, field, "東", "東京");
+
+        // Keystrokes without compact labels don't match terms with them.
+        String message = "Field [mismatch] has index analyzer [compact_index] and search analyzer [kuromoji_suggest_search]"
+                + " with different [compact_labels]";
+        Exception e = expectThrows(Exception.class, () -> assertSuggestResult(index, "mismatch", "とう"));
+        assertThat(ExceptionsHelper.unwrap(e, IllegalArgumentException.class).getMessage(), equalTo(message));
+        e = expectThrows(Exception.class, () -> assertSuggestResult(index,
+                new JapaneseCompletionSuggestionBuilder(field).prefix("とう").addField("mismatch", 1)));
+        assertThat(ExceptionsHelper.unwrap(e, IllegalArgumentException.class).getMessage(), equalTo(message));
+        e = expectThrows(Exception.class, () -> assertSuggestResult(index,
+                new JapaneseCompletionSuggestionBuilder(field).prefix("とう").analyzer("kuromoji_suggest_search")));
+        assertThat(ExceptionsHelper.unwrap(e, IllegalArgumentException.class).getMessage(), containsString("different [compact_labels]"));
+
+        // Regular expressions can't match Kana of compact labels.
+        e = expectThrows(Exception.class, () -> assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder(field).regex("とう.*")));
+        assertThat(ExceptionsHelper.unwrap(e, IllegalArgumentException.class).getMessage(),
+                equalTo("Field [suggest] has [compact_labels] and can't be used with [regex]"));
+    }
+
+    public void testSynonyms() throws IOException {
+        String index = "synonyms_test";
+        String type = "type";
+
+        client().admin().indices().prepareCreate(index)
+                .setSettings(Settings.builder()
+                        .put("index.analysis.analyzer.synonym_index.type", "kuromoji_suggest_index")
+                        .putArray("index.analysis.analyzer.synonym_index.synonyms", "disney, ディズニー")
+                        .put("index.analysis.analyzer.synonym_search.type", "kuromoji_suggest_search")
+                        .putArray("index.analysis.analyzer.synonym_search.synonyms", "disney, ディズニー"))
+                .addMapping(type, jsonBuilder()
+                            .startObject()
+                                .startObject("properties")
+                                    .startObject("index_time")
+                                        .field("type", "completion")
+                                        .field("analyzer", "synonym_index")
+                                        .field("search_analyzer", "kuromoji_suggest_search")
+                                    .endObject()
+                                    .startObject("search_time")
+                                        .field("type", "completion")
+                                        .field("analyzer", "kuromoji_suggest_index")
+                                        .field("search_analyzer", "synonym_search")
+                                    .endObject()
+                                .endObject()
+                            .endObject())
+                .execute().actionGet();
+
+        feedDocument(index, type, "index_time", "ディズニーランド");
+        feedDocument(index, type, "search_time", "ディズニーランド");
+
+        assertSuggestResult(index, "index_time", "disneyr", "ディズニーランド");
+        assertSuggestResult(index, "index_time", "disn", "ディズニーランド");
+        assertSuggestResult(index, "index_time", "でぃず", "ディズニーランド");
+
+        assertSuggestResult(index, "search_time", "disney", "ディズニーランド");
+        // Alternatives are added once a key is typed entirely.
+        assertSuggestResult(index, "search_time", "disn", (String[]) null);
+        assertSuggestResult(index, "search_time", "でぃず", "ディズニーランド");
+    }
+
+    public void testPrefixCache() throws IOException {
+        String index = "prefix_cache_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        client().prepareIndex(index, type, "1")
+                .setSource(jsonBuilder().startObject().field(field, "東京").endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).get();
+        feedDocument(index, type, field, "豆腐");
+        forceMerge();
+
+        // Second ones are served from the cache.
+        assertSuggestResult(index, field, "と", "東京", "豆腐");
+        assertSuggestResult(index, field, "と", "東京", "豆腐");
+        assertSuggestResult(index, field, "東", "東京");
+        assertSuggestResult(index, field, "東", "東京");
+        assertThat(JapaneseCompletionSuggester.INSTANCE.prefixCache().count(), greaterThan(0));
+
+        // Suggestions of another analyzer are cached separately.
+        int count = JapaneseCompletionSuggester.INSTANCE.prefixCache().count();
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder(field).prefix("と").analyzer("keyword"), "東京", "豆腐");
+        assertThat(JapaneseCompletionSuggester.INSTANCE.prefixCache().count(), greaterThan(count));
+
+        // Deletion invalidates cached suggestions.
+        client().prepareDelete(index, type, "1").setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).get();
+        assertSuggestResult(index, field, "と", "豆腐");
+        assertSuggestResult(index, field, "東", (String[]) null);
+
+        // Disable the cache.
+        client().admin().indices().prepareUpdateSettings(index)
+                .setSettings(Settings.builder().put(JapaneseCompletionSuggester.PREFIX_CACHE_MAX_LENGTH_SETTING.getKey(), 0)).get();
+        assertSuggestResult(index, field, "と", "豆腐");
+    }
+
+    public void testSkipDuplicates() throws IOException {
+        String index = "skip_duplicates_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        BulkRequestBuilder bulk = client().prepareBulk().setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (int i = 0; i < 5; i++) {
+            bulk.add(client().prepareIndex(index, type).setSource(suggestSource(field, "東京駅", 10 + i)));
+        }
+        bulk.add(client().prepareIndex(index, type).setSource(suggestSource(field, "東京都", 5)));
+        bulk.add(client().prepareIndex(index, type).setSource(suggestSource(field, "東京駅《とうきょうえき》", 20)));
+        assertFalse(bulk.get().hasFailures());
+        // Another segment.
+        feedDocument(index, type, field, "東京駅", 30);
+        feedDocument(index, type, field, "東京タワー", 1);
+
+        assertSuggestResult(index, field, "とうきょう", 3, "東京駅", "東京駅", "東京駅");
+        assertSuggestResult(index, field, "とうきょう", 3, true, "東京駅", "東京都", "東京タワー");
+        assertSuggestResult(index, field, "東京", 2, true, "東京駅", "東京都");
+        assertSuggestResult(index, field, "と", 10, true, "東京駅", "東京都", "東京タワー");
+    }
+
+    public void testMultipleFields() throws IOException {
+        String index = "multiple_fields_test";
+        String type = "type";
+
+        XContentBuilder properties = jsonBuilder().startObject().startObject("properties");
+        for (String field : Arrays.asList("name", "brand", "category")) {
+            properties.startObject(field)
+                        .field("type", "completion")
+                        .field("analyzer", "kuromoji_suggest_index")
+                        .field("search_analyzer", "kuromoji_suggest_search")
+                    .endObject();
+        }
+        properties.startObject("title").field("type", "text").endObject();
+        client().admin().indices().prepareCreate(index).addMapping(type, properties.endObject().endObject()).get();
+
+        feedDocument(index, type, "name", "東京ばな奈", 10);
+        feedDocument(index, type, "brand", "東急", 8);
+        feedDocument(index, type, "category", "陶器", 3);
+        feedDocument(index, type, "category", "とうもろこし", 1);
+
+        // Scores are weights times boosts of the fields.
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder("name").prefix("とう")
+                .addField("brand", 2).addField("category", 5), "東急", "陶器", "東京ばな奈", "とうもろこし");
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder("name").prefix("とう").size(2)
+                .addField("brand", 2).addField("category", 5), "東急", "陶器");
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder("name").prefix("とうk")
+                .addField("brand", 2).addField("category", 5), "東急", "陶器", "東京ばな奈");
+        // Boost of the main field.
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder("name").prefix("とう")
+                .addField("name", 3).addField("brand", 1), "東京ばな奈", "東急");
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder("brand").prefix("東")
+                .addField("name", 1).addField("category", 1), "東京ばな奈", "東急");
+
+        Exception e = expectThrows(Exception.class, () -> assertSuggestResult(index,
+                new JapaneseCompletionSuggestionBuilder("name").prefix("とう").addField("title", 1)));
+        assertThat(ExceptionsHelper.unwrap(e, IllegalArgumentException.class).getMessage(),
+                equalTo("Field [title] is not a completion suggest field"));
+    }
+
+    public void testLightweight() throws IOException {
+        String index = "lightweight_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        feedDocument(index, type, field, "東京駅", 3);
+        feedDocument(index, type, field, "東京都", 2);
+        feedDocument(index, type, field, "豆腐", 1);
+
+        JapaneseCompletionSuggestionBuilder builder = new JapaneseCompletionSuggestionBuilder(field).prefix("とう").lightweight(true);
+        assertSuggestResult(index, builder, "東京駅", "東京都", "豆腐");
+
+        SearchResponse response = client().prepareSearch(index)
+                .suggest(new SuggestBuilder().addSuggestion("suggestion", builder)).get();
+        Suggest.Suggestion<Suggest.Suggestion.Entry<Suggest.Suggestion.Entry.Option>> suggestion =
+                response.getSuggest().getSuggestion("suggestion");
+        // Options aren't completion options, their documents aren't fetched.
+        assertThat(suggestion, not(instanceOf(CompletionSuggestion.class)));
+        for (Suggest.Suggestion.Entry.Option option : suggestion.getEntries().get(0).getOptions()) {
+            assertThat(option, not(instanceOf(CompletionSuggestion.Entry.Option.class)));
+        }
+    }
+
+    public void testContexts() throws IOException {
+        String index = "contexts_test";
+        String type = "type";
+        String field = "suggest";
+
+        client().admin().indices().prepareCreate(index)
+                .addMapping(type, jsonBuilder()
+                            .startObject()
+                                .startObject("properties")
+                                    .startObject(field)
+                                        .field("type", "completion")
+                                        .field("analyzer", "kuromoji_suggest_index")
+                                        .field("search_analyzer", "kuromoji_suggest_search")
+                                        .startArray("contexts")
+                                            .startObject()
+                                                .field("name", "area")
+                                                .field("type", "category")
+                                            .endObject()
+                                        .endArray()
+                                    .endObject()
+                                .endObject()
+                            .endObject())
+                .execute().actionGet();
+
+        for (int i = 0; i < 5; i++) {
+            client().prepareIndex(index, type)
+                    .setSource(jsonBuilder()
+                            .startObject()
+                                .startObject(field)
+                                    .field("input", "東京" + i)
+                                    .field("weight", i + 1)
+                                    .startObject("contexts")
+                                        .array("area", "kanto", "area" + i)
+                                    .endObject()
+                                .endObject()
+                            .endObject())
+                    .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).get();
+        }
+
+        JapaneseCompletionSuggestionBuilder builder = new JapaneseCompletionSuggestionBuilder(field).prefix("とうk").size(2);
+        SearchResponse response = client().prepareSearch(index)
+                .suggest(new SuggestBuilder().addSuggestion("suggestion", builder))
+                .execute().actionGet();
+        CompletionSuggestion suggestion = response.getSuggest().getSuggestion("suggestion");
+        List<CompletionSuggestion.Entry.Option> options = suggestion.getEntries().get(0).getOptions();
+        assertThat(options.size(), is(2));
+        assertThat(options.get(0).getText().string(), equalTo("東京4"));
+        assertThat(options.get(0).getContexts().get("area"), containsInAnyOrder("kanto", "area4"));
+        assertThat(options.get(1).getText().string(), equalTo("東京3"));
+        assertThat(options.get(1).getContexts().get("area"), containsInAnyOrder("kanto", "area3"));
+    }
+
+    public void testTimeout() throws IOException {
+        String index = "timeout_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        feedDocument(index, type, field, "東京");
+        feedDocument(index, type, field, "豆腐");
+
+        // Nothing can be collected within 0ms. Partial results must not be cached either.
+        assertSuggestResult(index, field, "と", TimeValue.timeValueMillis(0), (String[]) null);
+        assertSuggestResult(index, field, "と", TimeValue.timeValueMinutes(1), "東京", "豆腐");
+        assertSuggestResult(index, field, "とう", TimeValue.timeValueMillis(0), (String[]) null);
+        assertSuggestResult(index, field, "とう", TimeValue.timeValueMinutes(1), "東京", "豆腐");
+    }
+
+    public void testSession() throws IOException {
+        String index = "session_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        feedDocument(index, type, field, "東京");
+        feedDocument(index, type, field, "豆腐");
+
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder(field).prefix("と").sessionId("session"), "東京", "豆腐");
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder(field).prefix("とうk").sessionId("session"), "東京");
+        assertThat(JapaneseCompletionSuggester.INSTANCE.sessions().count(), equalTo(0));
+
+        SuggestSessions sessions = new SuggestSessions();
+        ShardId shardId = new ShardId(index, "_na_", 0);
+        SuggestSessions.Session older = sessions.start("session", shardId);
+        SuggestSessions.Session other = sessions.start("other", shardId);
+        SuggestSessions.Session otherShard = sessions.start("session", new ShardId(index, "_na_", 1));
+        SuggestSessions.Session newer = sessions.start("session", shardId);
+        assertTrue(older.isCancelled());
+        assertFalse(other.isCancelled());
+        assertFalse(otherShard.isCancelled());
+        assertFalse(newer.isCancelled());
+
+        // Finishing the cancelled one doesn't unregister the newer one.
+        sessions.finish(older);
+        assertThat(sessions.count(), equalTo(3));
+        sessions.finish(newer);
+        sessions.finish(other);
+        sessions.finish(otherShard);
+        assertThat(sessions.count(), equalTo(0));
+    }
+
+    public void testCircuitBreaker() throws IOException {
+        String index = "breaker_test";
+        String type = "type";
+        String field = "suggest";
+
+        createTestIndex(index, type, field);
+
+        feedDocument(index, type, field, "東京");
+
+        // Nodes of the test cluster share the suggester. Make sure it uses a memory breaker of a running node.
+        CircuitBreakerService circuitBreakerService = StreamSupport.stream(
+                internalCluster().getInstances(CircuitBreakerService.class).spliterator(), false)
+                .filter(service -> service.getBreaker(CircuitBreaker.REQUEST) instanceof NoopCircuitBreaker == false)
+                .findFirst().orElse(null);
+        assumeTrue("no node with memory circuit breaker", circuitBreakerService != null);
+        // Restored so that later tests don't use the breaker of a stopped node.
+        CircuitBreakerService previous = JapaneseCompletionSuggester.INSTANCE.circuitBreakerService();
+        JapaneseCompletionSuggester.INSTANCE.setCircuitBreakerService(circuitBreakerService);
+        try {
+            client().admin().cluster().prepareUpdateSettings()
+                    .setTransientSettings(Settings.builder().put("indices.breaker.request.limit", "100b")).get();
+            try {
+                JapaneseCompletionSuggestionBuilder builder = new JapaneseCompletionSuggestionBuilder(field).prefix("とう");
+                Exception e = expectThrows(Exception.class, () -> client().prepareSearch(index)
+                        .suggest(new SuggestBuilder().addSuggestion("suggestion", builder)).get());
+                assertThat(ExceptionsHelper.unwrap(e, CircuitBreakingException.class), notNullValue());
+            } finally {
+                client().admin().cluster().prepareUpdateSettings()
+                        .setTransientSettings(Settings.builder().putNull("indices.breaker.request.limit")).get();
+            }
+
+            assertSuggestResult(index, field, "とう", "東京");
+            // Released
+            for (NodeStats nodeStats : client().admin().cluster().prepareNodesStats().setBreaker(true).get().getNodes()) {
+                assertThat(nodeStats.getBreaker().getStats(CircuitBreaker.REQUEST).getEstimated(), equalTo(0L));
+            }
+        } finally {
+            JapaneseCompletionSuggester.INSTANCE.setCircuitBreakerService(previous);
+        }
+    }
+
     public void createTestIndex(String index, String type, String completionField) throws IOException {
+        createTestIndex(index, type, completionField, Settings.EMPTY);
+    }
+
+    private void createTestIndex(String index, String type, String completionField, Settings settings) throws IOException {
         client().admin().indices().prepareCreate(index)
+                .setSettings(settings)
                 .addMapping(type, jsonBuilder()
                             .startObject()
                                 .startObject("properties")
@@ -119,23 +612,40 @@ public class JapaneseCompletionSuggesterTests extends ESIntegTestCase {
 
     private void feedDocument(String index, String type, String completionField, String value, int weight) throws IOException {
         IndexResponse a = client().prepareIndex(index, type)
-                .setSource(
-                        jsonBuilder()
-                                .startObject()
-                                    .startObject(completionField)
-                                        .field("input", value)
-                                        .field("weight", weight)
-                                    .endObject()
-                                .endObject())
+                .setSource(suggestSource(completionField, value, weight))
                 .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).execute().actionGet();
     }
 
+    private XContentBuilder suggestSource(String completionField, String value, int weight) throws IOException {
+        return jsonBuilder()
+                .startObject()
+                    .startObject(completionField)
+                        .field("input", value)
+                        .field("weight", weight)
+                    .endObject()
+                .endObject();
+    }
+
     private void assertSuggestResult(String index, String completionField, String input, String... expected) throws IOException {
         assertSuggestResult(index, completionField, input, 10, expected);
     }
 
     private void assertSuggestResult(String index, String completionField, String input, int size, String... expected) throws IOException {
-        JapaneseCompletionSuggestionBuilder prefix = new JapaneseCompletionSuggestionBuilder(completionField).prefix(input).size(size);
+        assertSuggestResult(index, completionField, input, size, false, expected);
+    }
+
+    private void assertSuggestResult(String index, String completionField, String input, int size, boolean skipDuplicates,
+                                     String... expected) throws IOException {
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder(completionField).prefix(input).size(size)
+                .skipDuplicates(skipDuplicates), expected);
+    }
+
+    private void assertSuggestResult(String index, String completionField, String input, TimeValue timeout,
+                                     String... expected) throws IOException {
+        assertSuggestResult(index, new JapaneseCompletionSuggestionBuilder(completionField).prefix(input).timeout(timeout), expected);
+    }
+
+    private void assertSuggestResult(String index, JapaneseCompletionSuggestionBuilder prefix, String... expected) throws IOException {
         SearchResponse response = client().prepareSearch(index)
                 .suggest(new SuggestBuilder().addSuggestion("suggestion", prefix))
                 .execute().actionGet();